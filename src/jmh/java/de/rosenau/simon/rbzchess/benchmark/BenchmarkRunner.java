@@ -0,0 +1,37 @@
+package de.rosenau.simon.rbzchess.benchmark;
+
+import de.rosenau.simon.rbzchess.boards.AttackTables;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Project created by Simon Rosenau.
+ */
+
+public class BenchmarkRunner {
+
+    /**
+     * Runs the benchmarks with the GC profiler attached so every result reports the allocation rate next to ops/s.
+     * Accepts the usual JMH command line options, e.g. a benchmark name regex or -p depth=3
+     */
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        // One-time costs are not visible in steady state results, report them up front
+        System.out.printf("Attack table initialisation: %.2f ms%n", AttackTables.INIT_NANOS / 1e6);
+        CommandLineOptions options = new CommandLineOptions(args);
+        Runner runner = new Runner(new OptionsBuilder()
+                .parent(options)
+                .addProfiler(GCProfiler.class)
+                .build());
+        if (options.shouldList()) {
+            runner.list();
+            return;
+        }
+        runner.run();
+    }
+
+}
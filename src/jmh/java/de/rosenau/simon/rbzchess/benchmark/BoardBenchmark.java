@@ -0,0 +1,75 @@
+package de.rosenau.simon.rbzchess.benchmark;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.boards.Standard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Project created by Simon Rosenau.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BoardBenchmark {
+
+    @Param({"opening", "middlegame", "endgame", "promotion"})
+    private String position;
+
+    private String fen;
+    private Standard board;
+    private ChessMove[] moves;
+    private int next;
+
+    @Setup
+    public void setup() {
+        fen = Positions.fen(position);
+        board = new Standard(fen);
+        Set<ChessMove> set = board.getPossibleMoves();
+        moves = set.toArray(new ChessMove[0]);
+    }
+
+    @Benchmark
+    public Standard parseFen() {
+        return new Standard(fen);
+    }
+
+    @Benchmark
+    public Set<ChessMove> getPossibleMoves() {
+        return board.getPossibleMoves();
+    }
+
+    @Benchmark
+    public Standard performMove() {
+        // Cycle through the legal moves so a single cheap move does not dominate
+        if (++next == moves.length) next = 0;
+        return board.performMove(moves[next]);
+    }
+
+    @Benchmark
+    public double evaluate() {
+        return board.evaluate();
+    }
+
+    @Benchmark
+    public String fen() {
+        return board.fen();
+    }
+
+}
@@ -0,0 +1,82 @@
+package de.rosenau.simon.rbzchess.benchmark;
+
+import de.rosenau.simon.rbzchess.ai.EvaluationStack;
+import de.rosenau.simon.rbzchess.ai.nnue.NnueEvaluator;
+import de.rosenau.simon.rbzchess.ai.nnue.NnueNetwork;
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+import de.rosenau.simon.rbzchess.boards.Standard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Evaluations per second of the material evaluation against the network, evaluated from scratch and incrementally
+ * from the parent as in a search. The network is random, its speed does not depend on the weights.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EvaluatorBenchmark {
+
+    @Param({"opening", "middlegame", "endgame", "promotion"})
+    private String position;
+
+    @Param({"256"})
+    private int hiddenSize;
+
+    private NnueEvaluator evaluator;
+    private EvaluationStack stack;
+    private ChessBoard[] children;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Standard board = new Standard(Positions.fen(position));
+        evaluator = new NnueEvaluator(NnueNetwork.random(hiddenSize, 1));
+        stack = evaluator.newStack();
+        stack.reset(board);
+        // Evaluates the root once, so the children are updated from its accumulators
+        stack.evaluate();
+        children = board.getPossibleMoves().stream().map(board::performMove).toArray(ChessBoard[]::new);
+    }
+
+    private ChessBoard nextChild() {
+        if (++next == children.length) next = 0;
+        return children[next];
+    }
+
+    @Benchmark
+    public double material() {
+        return nextChild().evaluate();
+    }
+
+    @Benchmark
+    public double nnueFull() {
+        return evaluator.evaluate(nextChild());
+    }
+
+    @Benchmark
+    public double nnueIncremental() {
+        stack.push(nextChild());
+        double value = stack.evaluate();
+        stack.pop();
+        return value;
+    }
+
+}
@@ -0,0 +1,56 @@
+package de.rosenau.simon.rbzchess.benchmark;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.ai.MonteCarloTreeSearch;
+import de.rosenau.simon.rbzchess.boards.Standard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Project created by Simon Rosenau.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class MonteCarloBenchmark {
+
+    @Param({"opening", "middlegame", "endgame", "promotion"})
+    private String position;
+
+    @Param({"1000"})
+    private int playouts;
+
+    @Param({"1", "4"})
+    private int threads;
+
+    private Standard board;
+
+    @Setup
+    public void setup() {
+        board = new Standard(Positions.fen(position));
+    }
+
+    @Benchmark
+    public ChessMove search() {
+        MonteCarloTreeSearch search = new MonteCarloTreeSearch(board, playouts * 64);
+        search.setPlayouts(playouts);
+        search.setThreads(threads);
+        return search.getBestMove();
+    }
+
+}
@@ -0,0 +1,39 @@
+package de.rosenau.simon.rbzchess.benchmark;
+
+/**
+ * Project created by Simon Rosenau.
+ */
+
+public class Positions {
+
+    public static final String OPENING = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+    public static final String MIDDLEGAME = "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1";
+    public static final String ENDGAME = "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1";
+    public static final String PROMOTION = "n1n5/PPPk4/8/8/8/8/4Kppp/5N1N b - - 0 1";
+
+    private Positions() {
+    }
+
+    /**
+     * Resolves a benchmark parameter to its FEN
+     *
+     * @param name One of opening, middlegame, endgame, promotion
+     * @return FEN
+     */
+
+    public static String fen(String name) {
+        switch (name) {
+            case "opening":
+                return OPENING;
+            case "middlegame":
+                return MIDDLEGAME;
+            case "endgame":
+                return ENDGAME;
+            case "promotion":
+                return PROMOTION;
+            default:
+                throw new IllegalArgumentException("Unknown position: " + name);
+        }
+    }
+
+}
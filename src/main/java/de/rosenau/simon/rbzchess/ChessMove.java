@@ -17,6 +17,26 @@ public class ChessMove {
     private byte[] moves;
     private char[] conversions;
 
+    /**
+     * Square the move starts from, for castling the square of the king
+     *
+     * @return index notated from 0 (top left) to 63 (bottom right)
+     */
+
+    public int getFrom() {
+        return (8 - name.charAt(1) + '0') * 8 + name.charAt(0) - 'a';
+    }
+
+    /**
+     * Square the move ends on, for castling the target square of the king
+     *
+     * @return index notated from 0 (top left) to 63 (bottom right)
+     */
+
+    public int getTo() {
+        return (8 - name.charAt(3) + '0') * 8 + name.charAt(2) - 'a';
+    }
+
     public static ChessMoveBuilder builder() {
         return new ChessMoveBuilder();
     }
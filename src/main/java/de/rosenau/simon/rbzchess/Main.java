@@ -1,5 +1,6 @@
 package de.rosenau.simon.rbzchess;
 
+import de.rosenau.simon.rbzchess.boards.KeyHistory;
 import de.rosenau.simon.rbzchess.boards.Standard;
 
 import java.io.BufferedReader;
@@ -53,6 +54,7 @@ public class Main {
 
     public static void main1(String[] args) throws IOException {
         Standard standard = new Standard("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1");
+        KeyHistory history = new KeyHistory();
         loop:
         while(true) {
             System.out.print("Which move to play? ");
@@ -60,8 +62,11 @@ public class Main {
             Set<ChessMove> set = standard.getPossibleMoves();
             for (ChessMove move : set) {
                 if (move.getName().equals(input)) {
+                    history.push(standard.key());
                     standard = standard.performMove(move);
                     System.out.println("Updated to fen: " + standard.fen());
+                    if (standard.isRepetition(history)) System.out.println("Draw by threefold repetition");
+                    if (standard.isFiftyMoveDraw()) System.out.println("Draw by fifty move rule");
                     continue loop;
                 }
             }
@@ -0,0 +1,324 @@
+package de.rosenau.simon.rbzchess.ai;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.boards.Standard;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Disk-backed cache of root analyses: best move, score, depth and nodes per position key. The file is memory-mapped
+ * and holds buckets of two 32 byte entries after a versioned header, so results survive restarts. Each entry is
+ * guarded by a sequence number that is odd while the entry is written, readers retry or miss when it changes during
+ * their read. One process at a time opens the file for writing, secured by a file lock, any number read.
+ * Keys ignore the game history, a cached result does not know about repetitions before the position.
+ */
+
+public class AnalysisCache implements Closeable {
+
+    public static final int DEFAULT_SIZE_BITS = 20;
+    // A single mapping holds less than 2 GiB, larger files could not be mapped
+    public static final int MAX_SIZE_BITS = 25;
+
+    private static final int MAGIC = 0x52425A43; // "RBZC"
+    private static final short VERSION = 1;
+
+    /**
+     * Header: magic (4 bytes), version (2 bytes), entry size (2 bytes), size bits (4 bytes), reserved (4 bytes),
+     * key of the starting position (8 bytes) to detect changed Zobrist constants, padded to 64 bytes
+     */
+
+    public static final int HEADER_SIZE = 64;
+    public static final int ENTRY_SIZE = 32;
+
+    private static final int BUCKET_ENTRIES = 2;
+    private static final int READ_ATTEMPTS = 4;
+
+    // Entry: sequence (0), key (8), nodes (16), score as float (24), move (28), depth (30), reserved (31)
+    private static final int KEY = 8;
+    private static final int NODES = 16;
+    private static final int SCORE = 24;
+    private static final int MOVE = 28;
+    private static final int DEPTH = 30;
+
+    private static final VarHandle SEQUENCE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+    @Getter
+    private final int sizeBits;
+    private final int bucketMask;
+
+    private final LongAdder probes = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+
+    private AnalysisCache(FileChannel channel, FileLock lock, MappedByteBuffer buffer, int sizeBits) {
+        this.channel = channel;
+        this.lock = lock;
+        this.buffer = buffer;
+        this.sizeBits = sizeBits;
+        this.bucketMask = (1 << sizeBits) / BUCKET_ENTRIES - 1;
+    }
+
+    /**
+     * Opens a cache for writing, creating the file if it does not exist. A file of another version or written with
+     * other Zobrist keys is cleared.
+     *
+     * @param path     Cache file
+     * @param sizeBits Base 2 logarithm of the entries of a new file, existing files keep their size
+     * @return AnalysisCache
+     * @throws IOException if the file can not be opened or another process writes it
+     */
+
+    public static AnalysisCache open(Path path, int sizeBits) throws IOException {
+        if (sizeBits < 1 || sizeBits > MAX_SIZE_BITS) throw new IllegalArgumentException("Invalid cache size 2^" + sizeBits);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Analysis cache is opened for writing by another writer: " + path);
+        }
+        try {
+            ByteBuffer header = readHeader(channel);
+            if (header != null && isCompatible(header)) sizeBits = header.getInt(8);
+            else header = null;
+            long length = HEADER_SIZE + ((long) ENTRY_SIZE << sizeBits);
+            if (header == null) {
+                // Drops the entries of an incompatible file
+                channel.truncate(0);
+                writeHeader(channel, sizeBits);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return new AnalysisCache(channel, lock, buffer, sizeBits);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing cache for reading while another process may write it
+     *
+     * @param path Cache file
+     * @return AnalysisCache
+     * @throws IOException if the file can not be read, is no cache or incompatible
+     */
+
+    public static AnalysisCache openReadOnly(Path path) throws IOException {
+        if (!Files.exists(path)) throw new IOException("No analysis cache: " + path);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = readHeader(channel);
+            if (header == null || !isCompatible(header)) throw new IOException("Incompatible analysis cache: " + path);
+            int sizeBits = header.getInt(8);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + ((long) ENTRY_SIZE << sizeBits));
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return new AnalysisCache(channel, null, buffer, sizeBits);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public boolean isWritable() {
+        return lock != null;
+    }
+
+    /**
+     * Looks up the analysis of a position
+     *
+     * @param key Position key
+     * @return Entry or null if the position is not cached
+     */
+
+    public Entry probe(long key) {
+        probes.increment();
+        int bucket = HEADER_SIZE + ((int) key & bucketMask) * BUCKET_ENTRIES * ENTRY_SIZE;
+        for (int slot = 0; slot < BUCKET_ENTRIES; slot++) {
+            int offset = bucket + slot * ENTRY_SIZE;
+            for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+                long sequence = (long) SEQUENCE.getAcquire(buffer, offset);
+                if (sequence == 0) break;
+                if ((sequence & 1) != 0) continue;
+                if (buffer.getLong(offset + KEY) != key) break;
+                Entry entry = new Entry(TranspositionTable.decodeMove(buffer.getShort(offset + MOVE) & 0xFFFF),
+                        buffer.getFloat(offset + SCORE), buffer.get(offset + DEPTH) & 0xFF, buffer.getLong(offset + NODES));
+                VarHandle.acquireFence();
+                if ((long) SEQUENCE.getOpaque(buffer, offset) != sequence) continue;
+                if (entry.getMoveName() == null) break;
+                hits.increment();
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores an analysis unless the position is cached at a greater depth, or at the same depth with more nodes.
+     * Other positions of the bucket are replaced shallowest first.
+     *
+     * @param key   Position key
+     * @param move  Best move
+     * @param score Score relative to the side to move
+     * @param depth Searched depth
+     * @param nodes Searched nodes
+     * @return true if the entry was written
+     */
+
+    public synchronized boolean store(long key, ChessMove move, double score, int depth, long nodes) {
+        if (!isWritable()) throw new IllegalStateException("Analysis cache is read-only");
+        depth = Math.min(depth, 255);
+        int bucket = HEADER_SIZE + ((int) key & bucketMask) * BUCKET_ENTRIES * ENTRY_SIZE;
+        int target = -1;
+        for (int slot = 0; slot < BUCKET_ENTRIES; slot++) {
+            int offset = bucket + slot * ENTRY_SIZE;
+            if (buffer.getLong(offset) != 0 && buffer.getLong(offset + KEY) == key) {
+                int cached = buffer.get(offset + DEPTH) & 0xFF;
+                if (cached > depth || cached == depth && buffer.getLong(offset + NODES) >= nodes) return false;
+                target = offset;
+                break;
+            }
+            if (target == -1 || replacementRank(offset) < replacementRank(target)) target = offset;
+        }
+
+        // Only this writer changes the sequence, readers seeing it odd or changed discard their read
+        long sequence = buffer.getLong(target);
+        SEQUENCE.setOpaque(buffer, target, sequence + 1);
+        VarHandle.releaseFence();
+        buffer.putLong(target + KEY, key);
+        buffer.putLong(target + NODES, nodes);
+        buffer.putFloat(target + SCORE, (float) score);
+        buffer.putShort(target + MOVE, (short) TranspositionTable.encodeMove(move));
+        buffer.put(target + DEPTH, (byte) depth);
+        SEQUENCE.setRelease(buffer, target, sequence + 2);
+        stores.increment();
+        return true;
+    }
+
+    /**
+     * Counts the cached positions by scanning the file
+     *
+     * @return Number of used entries
+     */
+
+    public long countEntries() {
+        long count = 0;
+        for (int offset = HEADER_SIZE; offset < buffer.capacity(); offset += ENTRY_SIZE) {
+            if ((long) SEQUENCE.getAcquire(buffer, offset) != 0) count++;
+        }
+        return count;
+    }
+
+    public long getProbes() {
+        return probes.sum();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getStores() {
+        return stores.sum();
+    }
+
+    /**
+     * @return Share of probes since opening that found the position, 0 without probes
+     */
+
+    public double getHitRate() {
+        long probes = getProbes();
+        return probes == 0 ? 0 : (double) getHits() / probes;
+    }
+
+    /**
+     * Writes changed entries to the disk, the operating system does so anyway some time after a store
+     */
+
+    public void flush() {
+        if (isWritable()) buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Empty entries are replaced first, then the shallowest
+    private int replacementRank(int offset) {
+        return buffer.getLong(offset) == 0 ? -1 : buffer.get(offset + DEPTH) & 0xFF;
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE) return null;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) return null;
+        }
+        header.flip();
+        return header;
+    }
+
+    private static boolean isCompatible(ByteBuffer header) {
+        int sizeBits = header.getInt(8);
+        return header.getInt(0) == MAGIC && header.getShort(4) == VERSION && header.getShort(6) == ENTRY_SIZE
+                && header.getLong(16) == startKey() && sizeBits > 0 && sizeBits <= MAX_SIZE_BITS;
+    }
+
+    private static void writeHeader(FileChannel channel, int sizeBits) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putShort(VERSION);
+        header.putShort((short) ENTRY_SIZE);
+        header.putInt(sizeBits);
+        header.putInt(0);
+        header.putLong(startKey());
+        header.position(0);
+        while (header.hasRemaining()) channel.write(header, header.position());
+    }
+
+    private static long startKey() {
+        return new Standard("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1").key();
+    }
+
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    @Getter
+    public static class Entry {
+
+        private final String moveName;
+        // Score relative to the side to move
+        private final double score;
+        private final int depth;
+        private final long nodes;
+
+    }
+
+}
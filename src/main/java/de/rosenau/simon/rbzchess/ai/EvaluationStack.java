@@ -0,0 +1,38 @@
+package de.rosenau.simon.rbzchess.ai;
+
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * State of an incrementally updated evaluator along the line of one search thread. The search pushes every board it
+ * moves to and pops it when returning, so the evaluator can derive a board's state from its parent.
+ */
+
+public interface EvaluationStack {
+
+    /**
+     * Starts a new line
+     *
+     * @param root Board at the bottom of the stack
+     */
+
+    void reset(ChessBoard root);
+
+    /**
+     * @param child Board reached by a move from the board on top of the stack
+     */
+
+    void push(ChessBoard child);
+
+    void pop();
+
+    /**
+     * Evaluates the board on top of the stack
+     *
+     * @return Score in pawns from the view of white
+     */
+
+    double evaluate();
+
+}
@@ -0,0 +1,34 @@
+package de.rosenau.simon.rbzchess.ai;
+
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+
+/**
+ * Project created by Simon Rosenau.
+ */
+
+@FunctionalInterface
+public interface Evaluator {
+
+    // Evaluation built into the board
+    Evaluator MATERIAL = ChessBoard::evaluate;
+
+    /**
+     * Evaluates a position without searching, must be safe to call from several threads
+     *
+     * @param board Position to evaluate
+     * @return Score in pawns from the view of white
+     */
+
+    double evaluate(ChessBoard board);
+
+    /**
+     * Creates the state of one search thread for evaluators that update incrementally from move to move
+     *
+     * @return EvaluationStack or null if boards are evaluated independently
+     */
+
+    default EvaluationStack newStack() {
+        return null;
+    }
+
+}
@@ -0,0 +1,161 @@
+package de.rosenau.simon.rbzchess.ai;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Publishes the results of finished searches as an MXBean. Values are only written once per search,
+ * so the search hot path is not affected.
+ */
+
+public class JmxSearchListener implements SearchListener, SearchStatisticsMXBean {
+
+    private volatile long searches;
+    private volatile long totalNodes;
+    private volatile long lastNodesPerSecond;
+    private volatile int lastDepth;
+    private volatile int lastSelectiveDepth;
+    private volatile double lastBranchingFactor;
+    private volatile double lastFirstMoveCutoffRate;
+    private volatile long lastSearchMillis;
+    private volatile long totalResearches;
+    private volatile long totalAspirationFailLows;
+    private volatile long totalAspirationFailHighs;
+    private volatile double lastTableHitRate;
+    private volatile long totalTableProbes;
+    private volatile long totalTableHits;
+    private volatile long totalTablebaseHits;
+    private volatile long totalCacheHits;
+    private final long[] totalCutoffs = new long[SearchMetrics.CUTOFF_BUCKETS];
+
+    /**
+     * Creates a listener and registers it at the platform MBean server
+     *
+     * @param name Value of the name key, e.g. the engine or session name
+     * @return JmxSearchListener
+     * @throws JMException if registering fails
+     */
+
+    public static JmxSearchListener register(String name) throws JMException {
+        JmxSearchListener listener = new JmxSearchListener();
+        ManagementFactory.getPlatformMBeanServer().registerMBean(listener,
+                new ObjectName("de.rosenau.simon.rbzchess:type=Search,name=" + ObjectName.quote(name)));
+        return listener;
+    }
+
+    @Override
+    public void onIteration(int depth, double score, ChessMove bestMove, SearchMetrics metrics) {
+    }
+
+    @Override
+    public synchronized void onSearchFinished(ChessMove bestMove, SearchMetrics metrics) {
+        searches = searches + 1;
+        totalNodes = totalNodes + metrics.getNodes();
+        lastNodesPerSecond = metrics.getNodesPerSecond();
+        lastDepth = metrics.getDepth();
+        lastSelectiveDepth = metrics.getSelectiveDepth();
+        lastBranchingFactor = metrics.getBranchingFactor();
+        lastFirstMoveCutoffRate = metrics.getFirstMoveCutoffRate();
+        lastSearchMillis = metrics.getElapsedNanos() / 1_000_000;
+        totalResearches = totalResearches + metrics.getResearches();
+        totalAspirationFailLows = totalAspirationFailLows + metrics.getAspirationFailLows();
+        totalAspirationFailHighs = totalAspirationFailHighs + metrics.getAspirationFailHighs();
+        lastTableHitRate = metrics.getTableHitRate();
+        totalTableProbes = totalTableProbes + metrics.getTableProbes();
+        totalTableHits = totalTableHits + metrics.getTableHits();
+        totalTablebaseHits = totalTablebaseHits + metrics.getTablebaseHits();
+        totalCacheHits = totalCacheHits + metrics.getCacheHits();
+        for (int i = 0; i < SearchMetrics.CUTOFF_BUCKETS; i++) totalCutoffs[i] += metrics.getCutoffs()[i];
+    }
+
+    @Override
+    public long getSearches() {
+        return searches;
+    }
+
+    @Override
+    public long getTotalNodes() {
+        return totalNodes;
+    }
+
+    @Override
+    public long getLastNodesPerSecond() {
+        return lastNodesPerSecond;
+    }
+
+    @Override
+    public int getLastDepth() {
+        return lastDepth;
+    }
+
+    @Override
+    public int getLastSelectiveDepth() {
+        return lastSelectiveDepth;
+    }
+
+    @Override
+    public double getLastBranchingFactor() {
+        return lastBranchingFactor;
+    }
+
+    @Override
+    public double getLastFirstMoveCutoffRate() {
+        return lastFirstMoveCutoffRate;
+    }
+
+    @Override
+    public long getLastSearchMillis() {
+        return lastSearchMillis;
+    }
+
+    @Override
+    public long getTotalResearches() {
+        return totalResearches;
+    }
+
+    @Override
+    public long getTotalAspirationFailLows() {
+        return totalAspirationFailLows;
+    }
+
+    @Override
+    public long getTotalAspirationFailHighs() {
+        return totalAspirationFailHighs;
+    }
+
+    @Override
+    public double getLastTableHitRate() {
+        return lastTableHitRate;
+    }
+
+    @Override
+    public long getTotalTableProbes() {
+        return totalTableProbes;
+    }
+
+    @Override
+    public long getTotalTableHits() {
+        return totalTableHits;
+    }
+
+    @Override
+    public long getTotalTablebaseHits() {
+        return totalTablebaseHits;
+    }
+
+    @Override
+    public long getTotalCacheHits() {
+        return totalCacheHits;
+    }
+
+    @Override
+    public synchronized long[] getTotalCutoffs() {
+        return totalCutoffs.clone();
+    }
+
+}
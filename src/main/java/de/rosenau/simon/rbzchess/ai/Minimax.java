@@ -1,13 +1,20 @@
 package de.rosenau.simon.rbzchess.ai;
 
 import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.ai.syzygy.SyzygyTablebase;
 import de.rosenau.simon.rbzchess.boards.ChessBoard;
+import de.rosenau.simon.rbzchess.boards.KeyHistory;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Project created by Simon Rosenau.
@@ -17,15 +24,484 @@ import java.util.Set;
 @Getter
 public class Minimax {
 
+    public static final int DEFAULT_DEPTH = 3;
+
+    // Score of being mated at the root, mates further away score closer to zero
+    public static final double MATE = 10000;
+    // Score of a tablebase win at the root, below every mate score
+    public static final double TABLEBASE_WIN = MATE / 2;
+
+    // Initial half width of the aspiration window in pawns
+    public static final double DEFAULT_ASPIRATION_WINDOW = 0.5;
+    // Windows wider than this are opened fully on the next failure
+    private static final double MAX_ASPIRATION_WINDOW = 8;
+    // Width of zero windows, scores are in pawns so a hundredth is below any meaningful difference
+    private static final double NULL_WINDOW = 0.01;
+
     private final MinimaxNode node;
+    private final int depth;
+
+    private final List<SearchListener> listeners = new ArrayList<>();
+
+    // Consulted before searching, null to always search
+    @Setter
+    private OpeningBook book;
+
+    // Consulted before single line searches and updated after deeper results, null to not cache
+    @Setter
+    private AnalysisCache cache;
+
+    // Probed at the root and after captures and pawn moves, null to never probe
+    @Setter
+    private SyzygyTablebase tablebase;
+
+    // Kept between searches, set a shared table to reuse results of other searches
+    @Setter
+    private TranspositionTable table = new TranspositionTable(TranspositionTable.DEFAULT_SIZE_BITS);
+
+    // Keys of the game positions before the root, the search pushes its line on top
+    @Setter
+    private KeyHistory history = new KeyHistory();
+    private int searchStart;
+
+    @Setter
+    private double aspirationWindow = DEFAULT_ASPIRATION_WINDOW;
+
+    // Evaluation of the leaves
+    @Setter
+    private Evaluator evaluator = Evaluator.MATERIAL;
+    // Line of the running search for incremental evaluators, null otherwise
+    @Getter(AccessLevel.NONE)
+    private EvaluationStack evaluationStack;
+
+    // Quiet moves that caused the last cutoffs per ply
+    private final String[][] killers = new String[SearchMetrics.MAX_DEPTH][2];
+
+    private double score;
+    private SearchMetrics metrics;
+
+    // Best move of the last root search, null if it failed low
+    @Getter(AccessLevel.NONE)
+    private ChessMove rootBest;
+
+    // Time per search in milliseconds, 0 for no limit. Pondering starts the time on the ponder hit
+    @Setter
+    private long timeLimitMillis;
+    @Getter(AccessLevel.NONE)
+    private volatile long deadline;
+    @Getter(AccessLevel.NONE)
+    private volatile boolean stopped;
+
+    @Getter(AccessLevel.NONE)
+    private volatile boolean pondering;
+    @Getter(AccessLevel.NONE)
+    private Thread ponderThread;
+    @Getter(AccessLevel.NONE)
+    private ChessMove ponderResult;
 
     public Minimax(ChessBoard board) {
-        node = new MinimaxNode(null, board, board.evaluate());
+        this(board, DEFAULT_DEPTH);
+    }
+
+    /**
+     * @param board Root board
+     * @param depth Depth of the last iteration, clamped to 1..{@link SearchMetrics#MAX_DEPTH}
+     */
+
+    public Minimax(ChessBoard board, int depth) {
+        this.node = new MinimaxNode(null, board, board.evaluate());
+        // Iterations and killers are recorded per depth in arrays of that size
+        this.depth = Math.max(1, Math.min(SearchMetrics.MAX_DEPTH, depth));
     }
 
+    public void addListener(SearchListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SearchListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Searches the root board with principal variation search using iterative deepening up to the configured depth
+     * and aspiration windows around the score of the previous iteration
+     *
+     * @return Best move for the side to move or null if there is no legal move
+     */
+
     public ChessMove getBestMove() {
-        // TODO
-        return null;
+        List<ScoredMove> lines = analyze(1);
+        return lines.isEmpty() ? null : lines.get(0).getMove();
+    }
+
+    /**
+     * Searches the best moves of the root board. Every iteration searches the root once per line, each time
+     * excluding the moves of the lines already found, all with the same transposition table. A {@link #stop()}
+     * arriving before the search starts, e.g. while it waits in an executor, ends it at once with the first legal
+     * move as its result.
+     *
+     * @param count Number of lines to search
+     * @return Best moves ordered by score, fewer if there are fewer legal moves. A book or tablebase move
+     * is returned as a single line.
+     */
+
+    public List<ScoredMove> analyze(int count) {
+        return search(count);
+    }
+
+    // Does not reset the stop flag, so a search started in the background can be stopped before it begins
+    private List<ScoredMove> search(int count) {
+        metrics = new SearchMetrics();
+        metrics.start();
+        if (!pondering) deadline = timeLimitMillis > 0 ? System.nanoTime() + timeLimitMillis * 1_000_000 : 0;
+
+        ChessBoard board = node.getBoard();
+        if (book != null) {
+            ChessMove move = book.getMove(board, ThreadLocalRandom.current());
+            if (move != null) {
+                score = 0;
+                return finish(Collections.singletonList(new ScoredMove(move, 0, 0)));
+            }
+        }
+
+        if (cache != null && count == 1) {
+            AnalysisCache.Entry entry = cache.probe(board.key());
+            ChessMove move = entry != null && entry.getDepth() >= depth ? board.getMove(entry.getMoveName()) : null;
+            if (move != null) {
+                score = entry.getScore();
+                metrics.cacheHit();
+                return finish(Collections.singletonList(new ScoredMove(move, score, entry.getDepth())));
+            }
+        }
+
+        List<ChessMove> moves = new ArrayList<>(board.getPossibleMoves());
+        if (moves.isEmpty()) return finish(Collections.emptyList());
+        if (tablebase != null && tablebase.canProbe(board)) {
+            int wdl = tablebase.rankRootMoves(board, moves);
+            // Winning moves are ordered by distance to zeroing, searching them could lose the progress
+            if (wdl == SyzygyTablebase.WIN || wdl == SyzygyTablebase.CURSED_WIN) {
+                score = wdl == SyzygyTablebase.WIN ? TABLEBASE_WIN - 1 : 0;
+                metrics.tablebaseHit();
+                return finish(Collections.singletonList(new ScoredMove(moves.get(0), score, 0)));
+            }
+        }
+
+        searchStart = history.getSize();
+        history.push(board.key());
+        evaluationStack = evaluator.newStack();
+        if (evaluationStack != null) evaluationStack.reset(board);
+
+        // Until the first iteration completes the first generated move is the fallback
+        List<ScoredMove> lines = Collections.singletonList(new ScoredMove(moves.get(0), 0, 0));
+        for (int d = 1; d <= depth && !stopped; d++) {
+            long iterationStart = System.nanoTime();
+            long iterationNodes = metrics.getNodes();
+
+            List<ScoredMove> iteration = new ArrayList<>();
+            List<ChessMove> remaining = new ArrayList<>(moves);
+            while (iteration.size() < count && !remaining.isEmpty()) {
+                // The previous score of the same line centers the aspiration window
+                double previous = d > 1 && iteration.size() < lines.size() ? lines.get(iteration.size()).getScore() : Double.NaN;
+                ChessMove best = searchLine(board, remaining, d, previous);
+                if (stopped) break;
+                iteration.add(new ScoredMove(best, score, d));
+                remaining.remove(best);
+            }
+            // An interrupted iteration is incomplete, the previous one stays the result
+            if (stopped) break;
+
+            iteration.sort((a, b) -> Double.compare(b.getScore(), a.getScore()));
+            lines = iteration;
+            score = lines.get(0).getScore();
+
+            // Search the lines of this iteration first in the next one
+            for (int i = lines.size() - 1; i >= 0; i--) {
+                moves.remove(lines.get(i).getMove());
+                moves.add(0, lines.get(i).getMove());
+            }
+
+            metrics.finishIteration(d, iterationStart, iterationNodes);
+            for (SearchListener listener : listeners) {
+                listener.onIteration(d, score, lines.get(0).getMove(), metrics);
+                for (int i = 0; i < lines.size(); i++) {
+                    listener.onLine(d, i, lines.get(i).getScore(), lines.get(i).getMove(), metrics);
+                }
+            }
+        }
+
+        history.pop();
+        ScoredMove best = lines.get(0);
+        if (cache != null && cache.isWritable() && best.getDepth() > 0) {
+            cache.store(board.key(), best.getMove(), best.getScore(), best.getDepth(), metrics.getNodes());
+        }
+        return finish(lines);
+    }
+
+    private List<ScoredMove> finish(List<ScoredMove> lines) {
+        // A stop is consumed by the search it ended, the next search starts unstopped
+        stopped = false;
+        metrics.finish();
+        ChessMove best = lines.isEmpty() ? null : lines.get(0).getMove();
+        for (SearchListener listener : listeners) listener.onSearchFinished(best, metrics);
+        return lines;
+    }
+
+    /**
+     * Searches a window around the previous score of a line and widens the failing side until the score lies
+     * within, leaving the score in {@link #score}
+     *
+     * @param previous Score of the line in the previous iteration or NaN
+     * @return Best of the given moves
+     */
+
+    private ChessMove searchLine(ChessBoard board, List<ChessMove> moves, int depth, double previous) {
+        double alpha = -Double.MAX_VALUE;
+        double beta = Double.MAX_VALUE;
+        double delta = aspirationWindow;
+        if (!Double.isNaN(previous) && Math.abs(previous) < TABLEBASE_WIN - SearchMetrics.MAX_DEPTH) {
+            alpha = previous - delta;
+            beta = previous + delta;
+        }
+        while (true) {
+            double value = searchRoot(board, moves, depth, alpha, beta);
+            if (stopped) return null;
+            delta *= 2;
+            if (value <= alpha && alpha != -Double.MAX_VALUE) {
+                metrics.aspirationFailLow();
+                alpha = delta > MAX_ASPIRATION_WINDOW ? -Double.MAX_VALUE : previous - delta;
+            } else if (value >= beta && beta != Double.MAX_VALUE) {
+                metrics.aspirationFailHigh();
+                beta = delta > MAX_ASPIRATION_WINDOW ? Double.MAX_VALUE : previous + delta;
+                // The move failing high is the best candidate for the re-search
+                moves.remove(rootBest);
+                moves.add(0, rootBest);
+            } else {
+                score = value;
+                return rootBest;
+            }
+        }
+    }
+
+    /**
+     * Move the opponent is expected to answer the best move with, taken from the transposition table
+     *
+     * @param bestMove Move played from the root board
+     * @return ChessMove or null if unknown
+     */
+
+    public ChessMove getPonderMove(ChessMove bestMove) {
+        ChessBoard next = node.getBoard().performMove(bestMove);
+        long entry = table.probe(next.key());
+        String name = entry != 0 ? TranspositionTable.getMoveName(entry) : null;
+        return name != null ? next.getMove(name) : null;
+    }
+
+    /**
+     * Starts searching the root board in the background without time limit. The root board is meant to be the
+     * position after the expected reply of the opponent, which is searched while the opponent is thinking.
+     * Finish with {@link #ponderHit()} if the opponent played the expected move, else with {@link #stop()}.
+     */
+
+    public synchronized void ponder() {
+        if (ponderThread != null) throw new IllegalStateException("Already pondering");
+        pondering = true;
+        stopped = false;
+        deadline = 0;
+        ponderThread = new Thread(() -> {
+            List<ScoredMove> lines = search(1);
+            ponderResult = lines.isEmpty() ? null : lines.get(0).getMove();
+        }, "Ponder");
+        ponderThread.setDaemon(true);
+        ponderThread.start();
+    }
+
+    /**
+     * Converts pondering into a normal search: the time limit starts now and the search continues where it is
+     *
+     * @return Best move
+     * @throws InterruptedException if interrupted while waiting
+     */
+
+    public synchronized ChessMove ponderHit() throws InterruptedException {
+        if (ponderThread == null) throw new IllegalStateException("Not pondering");
+        if (timeLimitMillis > 0) deadline = System.nanoTime() + timeLimitMillis * 1_000_000;
+        pondering = false;
+        ponderThread.join();
+        ponderThread = null;
+        return ponderResult;
+    }
+
+    /**
+     * Stops a running search as soon as possible, or the next one if none is running. A search returns the result
+     * of its last completed iteration, results of stopped pondering stay in the transposition table for the next
+     * search.
+     */
+
+    public void stop() {
+        stopped = true;
+        Thread thread;
+        synchronized (this) {
+            thread = ponderThread;
+            ponderThread = null;
+            pondering = false;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+                // The stop was meant for the pondering, which may have ended on its own before it
+                stopped = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Searches the root moves with principal variation search, the first move with the full window and the others
+     * with a zero window that is only widened if they turn out better
+     *
+     * @return Score within the window, alpha on fail-low or a score of at least beta on fail-high
+     */
+
+    private double searchRoot(ChessBoard board, List<ChessMove> moves, int depth, double alpha, double beta) {
+        rootBest = null;
+        for (int i = 0; i < moves.size(); i++) {
+            ChessMove move = moves.get(i);
+            ChessBoard next = board.performMove(move);
+            if (evaluationStack != null) evaluationStack.push(next);
+            double value;
+            if (i == 0) {
+                value = -search(next, depth - 1, -beta, -alpha, 1);
+            } else {
+                value = -search(next, depth - 1, -alpha - NULL_WINDOW, -alpha, 1);
+                if (value > alpha && value < beta) {
+                    metrics.research();
+                    value = -search(next, depth - 1, -beta, -alpha, 1);
+                }
+            }
+            if (evaluationStack != null) evaluationStack.pop();
+            if (stopped) break;
+            if (value > alpha) {
+                alpha = value;
+                rootBest = move;
+                if (value >= beta) break;
+            }
+        }
+        return alpha;
+    }
+
+    private double search(ChessBoard board, int depth, double alpha, double beta, int ply) {
+        metrics.node(ply);
+        // Checking the clock every node would cost more than it saves
+        if ((metrics.getNodes() & 1023) == 0 && deadline != 0 && System.nanoTime() > deadline) stopped = true;
+
+        // Cheap exit for drawn lines, repeating a position takes at least four reversible half moves
+        int halfmoveClock = board.getHalfmoveClock();
+        if (halfmoveClock >= 4 && (history.isRepetition(board.key(), halfmoveClock, searchStart) || board.isFiftyMoveDraw())) {
+            return 0;
+        }
+
+        // The tables ignore the fifty move rule history, so they are exact only right after a capture or pawn move
+        if (tablebase != null && halfmoveClock == 0 && tablebase.canProbe(board)) {
+            int wdl = tablebase.probeWdl(board);
+            if (wdl != SyzygyTablebase.FAILED) {
+                metrics.tablebaseHit();
+                if (wdl == SyzygyTablebase.WIN) return TABLEBASE_WIN - ply;
+                if (wdl == SyzygyTablebase.LOSS) return -TABLEBASE_WIN + ply;
+                return 0;
+            }
+        }
+
+        if (depth <= 0) return evaluate(board);
+
+        long key = board.key();
+        metrics.tableProbe();
+        long entry = table.probe(key);
+        String tableMove = null;
+        if (entry != 0) {
+            metrics.tableHit();
+            tableMove = TranspositionTable.getMoveName(entry);
+            if (TranspositionTable.getDepth(entry) >= depth) {
+                double value = fromTable(TranspositionTable.getScore(entry), ply);
+                int bound = TranspositionTable.getBound(entry);
+                if (bound == TranspositionTable.EXACT
+                        || (bound == TranspositionTable.LOWER && value >= beta)
+                        || (bound == TranspositionTable.UPPER && value <= alpha)) {
+                    return value;
+                }
+            }
+        }
+
+        MovePicker picker = new MovePicker(board, tableMove, ply < killers.length ? killers[ply] : null);
+        ChessMove best = null;
+        int index = 0;
+        history.push(key);
+        for (ChessMove move = picker.next(); move != null; move = picker.next()) {
+            ChessBoard next = board.performMove(move);
+            if (evaluationStack != null) evaluationStack.push(next);
+            double value;
+            if (index == 0) {
+                value = -search(next, depth - 1, -beta, -alpha, ply + 1);
+            } else {
+                // Prove the move is not better than the best so far, search it properly only if that fails
+                value = -search(next, depth - 1, -alpha - NULL_WINDOW, -alpha, ply + 1);
+                if (value > alpha && value < beta) {
+                    metrics.research();
+                    value = -search(next, depth - 1, -beta, -alpha, ply + 1);
+                }
+            }
+            if (evaluationStack != null) evaluationStack.pop();
+            // Scores of an interrupted search are meaningless, they must not reach the table
+            if (stopped) {
+                history.pop();
+                return 0;
+            }
+            if (value >= beta) {
+                history.pop();
+                metrics.cutoff(index);
+                if (picker.isQuiet() && ply < killers.length) storeKiller(ply, move.getName());
+                table.store(key, move, depth, TranspositionTable.LOWER, toTable(value, ply));
+                return value;
+            }
+            if (value > alpha) {
+                alpha = value;
+                best = move;
+            }
+            index++;
+        }
+        history.pop();
+
+        // Checkmate or stalemate
+        if (index == 0) return board.isCheck() ? -MATE + ply : 0;
+
+        table.store(key, best, depth, best != null ? TranspositionTable.EXACT : TranspositionTable.UPPER, toTable(alpha, ply));
+        return alpha;
+    }
+
+    private void storeKiller(int ply, String name) {
+        String[] slots = killers[ply];
+        if (name.equals(slots[0])) return;
+        slots[1] = slots[0];
+        slots[0] = name;
+    }
+
+    // Mate and tablebase scores count from the root, the table stores them counted from the node
+    private static double toTable(double value, int ply) {
+        if (value >= TABLEBASE_WIN - SearchMetrics.MAX_DEPTH) return value + ply;
+        if (value <= -TABLEBASE_WIN + SearchMetrics.MAX_DEPTH) return value - ply;
+        return value;
+    }
+
+    private static double fromTable(double value, int ply) {
+        if (value >= TABLEBASE_WIN - SearchMetrics.MAX_DEPTH) return value - ply;
+        if (value <= -TABLEBASE_WIN + SearchMetrics.MAX_DEPTH) return value + ply;
+        return value;
+    }
+
+    // Evaluation relative to the side to move
+    private double evaluate(ChessBoard board) {
+        double value = evaluationStack != null ? evaluationStack.evaluate() : evaluator.evaluate(board);
+        return board.isWhiteToMove() ? value : -value;
     }
 
     @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
@@ -0,0 +1,433 @@
+package de.rosenau.simon.rbzchess.ai;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.ChessUtils;
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Monte Carlo tree search with UCT selection. The tree lives in parallel primitive arrays indexed by node, the
+ * children of a node are stored next to each other. Several threads search the same tree, a thread passing a node
+ * counts a virtual loss on it until its playout result arrives so the other threads spread over other lines.
+ * The tree is kept between moves by {@link #advance(ChessMove)}.
+ */
+
+@Getter
+public class MonteCarloTreeSearch {
+
+    // Bytes of the arrays per node
+    public static final int BYTES_PER_NODE = 4 + 4 + 2 + 4 + 8;
+
+    public static final int DEFAULT_PLAYOUTS = 10_000;
+    public static final double DEFAULT_EXPLORATION = 1.4;
+
+    public enum Playout {
+        // Scores the new leaf by its evaluation, no moves played
+        EVALUATION,
+        // Plays random moves up to the playout depth and scores the reached position
+        RANDOM
+    }
+
+    // Values of firstChild besides child indices
+    private static final int UNEXPANDED = -1;
+    private static final int EXPANDING = -2;
+    private static final int MATED = -3;
+    private static final int DRAWN = -4;
+
+    // Visits added while a thread's playout through a node is running
+    private static final int VIRTUAL_LOSS = 3;
+    // Rewards are summed as fixed point numbers with this scale, 1 is a win for the side that moved into the node
+    private static final long REWARD_SCALE = 1 << 16;
+
+    private static final String PROMOTIONS = " nbrq";
+
+    private ChessBoard board;
+    private final int capacity;
+
+    @Getter(AccessLevel.NONE)
+    private AtomicIntegerArray firstChild;
+    @Getter(AccessLevel.NONE)
+    private int[] childCount;
+    // Move leading to the node as from, to and promotion in 16 bits
+    @Getter(AccessLevel.NONE)
+    private short[] move;
+    @Getter(AccessLevel.NONE)
+    private AtomicIntegerArray visits;
+    @Getter(AccessLevel.NONE)
+    private AtomicLongArray rewards;
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicInteger size = new AtomicInteger();
+    private int root;
+
+    @Setter
+    private int threads = 1;
+    // Playouts per search, counted from the start of the search
+    @Setter
+    private long playouts = DEFAULT_PLAYOUTS;
+    // Time per search in milliseconds, 0 for no limit
+    @Setter
+    private long timeLimitMillis;
+    @Setter
+    private double exploration = DEFAULT_EXPLORATION;
+    @Setter
+    private Playout playout = Playout.EVALUATION;
+    @Setter
+    private int playoutDepth = 16;
+    // Evaluation of the playout positions
+    @Setter
+    private Evaluator evaluator = Evaluator.MATERIAL;
+
+    private SearchMetrics metrics;
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong played = new AtomicLong();
+    @Getter(AccessLevel.NONE)
+    private volatile boolean stopped;
+    @Getter(AccessLevel.NONE)
+    private volatile long deadline;
+
+    /**
+     * @param board    Root board
+     * @param maxNodes Maximum number of nodes, the arrays are allocated up front. A full tree stops growing but
+     *                 keeps refining the statistics of its nodes.
+     */
+
+    public MonteCarloTreeSearch(ChessBoard board, int maxNodes) {
+        if (maxNodes < 1) throw new IllegalArgumentException("Invalid node limit " + maxNodes);
+        this.board = board;
+        this.capacity = maxNodes;
+        allocate();
+        reset();
+    }
+
+    /**
+     * Creates a search whose tree takes at most the given amount of memory
+     *
+     * @param board    Root board
+     * @param maxBytes Memory limit of the tree in bytes. Reusing the tree copies it, taking twice the memory meanwhile.
+     * @return MonteCarloTreeSearch
+     */
+
+    public static MonteCarloTreeSearch withMemoryLimit(ChessBoard board, long maxBytes) {
+        return new MonteCarloTreeSearch(board, (int) Math.min(Integer.MAX_VALUE - 8, maxBytes / BYTES_PER_NODE));
+    }
+
+    public int getNodes() {
+        return size.get();
+    }
+
+    /**
+     * Searches the root board until the playout limit, the time limit or {@link #stop()} ends the search,
+     * continuing the statistics of previous searches of the same tree
+     *
+     * @return Most visited move or null if there is no legal move
+     */
+
+    public ChessMove getBestMove() {
+        stopped = false;
+        played.set(0);
+        deadline = timeLimitMillis > 0 ? System.nanoTime() + timeLimitMillis * 1_000_000 : 0;
+
+        List<Thread> helpers = new ArrayList<>();
+        List<SearchMetrics> threadMetrics = new ArrayList<>();
+        for (int i = 0; i < threads; i++) threadMetrics.add(new SearchMetrics());
+        for (int i = 1; i < threads; i++) {
+            SearchMetrics helperMetrics = threadMetrics.get(i);
+            Thread thread = new Thread(() -> work(helperMetrics), "MCTS-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            helpers.add(thread);
+        }
+        work(threadMetrics.get(0));
+        for (Thread thread : helpers) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                stopped = true;
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        metrics = new SearchMetrics();
+        for (SearchMetrics threadMetric : threadMetrics) metrics.merge(threadMetric);
+
+        int best = getBestChild();
+        return best == -1 ? null : board.getMove(moveName(move[best]));
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Expected result of the most visited move for the side to move
+     *
+     * @return Value between 0 (loss) and 1 (win), 0.5 if unknown
+     */
+
+    public double getScore() {
+        int best = getBestChild();
+        if (best == -1 || visits.get(best) == 0) return 0.5;
+        return (double) rewards.get(best) / REWARD_SCALE / visits.get(best);
+    }
+
+    /**
+     * Moves the root to the position after a move keeping the statistics of its subtree. Call it for the move
+     * played and the reply of the opponent. Must not be called while searching.
+     *
+     * @param played Move played on the root board
+     */
+
+    public void advance(ChessMove played) {
+        ChessBoard next = board.performMove(played);
+        int child = -1;
+        int first = firstChild.get(root);
+        if (first >= 0) {
+            String name = played.getName();
+            for (int i = first; i < first + childCount[root]; i++) {
+                if (moveName(move[i]).equals(name)) {
+                    child = i;
+                    break;
+                }
+            }
+        }
+        board = next;
+        if (child == -1) {
+            reset();
+        } else {
+            compact(child);
+        }
+    }
+
+    private void work(SearchMetrics metrics) {
+        metrics.start();
+        int[] path = new int[SearchMetrics.MAX_DEPTH + 1];
+        while (!stopped) {
+            if (played.getAndIncrement() >= playouts) break;
+            if (deadline != 0 && System.nanoTime() > deadline) break;
+            iterate(path, metrics);
+        }
+        metrics.finish();
+    }
+
+    // One selection, expansion, playout and backpropagation
+    private void iterate(int[] path, SearchMetrics metrics) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ChessBoard current = board;
+        int node = root;
+        int length = 0;
+        path[length++] = node;
+        visits.addAndGet(node, VIRTUAL_LOSS);
+
+        int first;
+        while ((first = firstChild.get(node)) >= 0 && length < path.length) {
+            node = select(node, first);
+            current = current.performMove(current.getMove(moveName(move[node])));
+            path[length++] = node;
+            visits.addAndGet(node, VIRTUAL_LOSS);
+        }
+        metrics.node(length - 1);
+
+        // Result for the side to move at the leaf
+        double result;
+        if (first == MATED) {
+            result = 0;
+        } else if (first == DRAWN) {
+            result = 0.5;
+        } else if (first == UNEXPANDED && size.get() < capacity && firstChild.compareAndSet(node, UNEXPANDED, EXPANDING)) {
+            Set<ChessMove> moves = current.getPossibleMoves();
+            if (moves.isEmpty()) {
+                boolean mated = current.isCheck();
+                firstChild.set(node, mated ? MATED : DRAWN);
+                result = mated ? 0 : 0.5;
+            } else if (current.isFiftyMoveDraw()) {
+                firstChild.set(node, DRAWN);
+                result = 0.5;
+            } else {
+                expand(node, moves);
+                result = playout(current, random);
+            }
+        } else {
+            // Expanded by another thread right now, the tree is full or at the depth limit, only play out
+            result = playout(current, random);
+        }
+
+        // Every node is scored for the side that moved into it, which alternates along the path
+        for (int i = length - 1; i >= 0; i--) {
+            result = 1 - result;
+            visits.addAndGet(path[i], 1 - VIRTUAL_LOSS);
+            rewards.addAndGet(path[i], Math.round(result * REWARD_SCALE));
+        }
+    }
+
+    private int select(int node, int first) {
+        int count = childCount[node];
+        double logVisits = Math.log(Math.max(1, visits.get(node)));
+        int best = first;
+        double bestValue = Double.NEGATIVE_INFINITY;
+        for (int child = first; child < first + count; child++) {
+            int childVisits = visits.get(child);
+            // Unvisited children first
+            if (childVisits == 0) return child;
+            double value = (double) rewards.get(child) / REWARD_SCALE / childVisits
+                    + exploration * Math.sqrt(logVisits / childVisits);
+            if (value > bestValue) {
+                bestValue = value;
+                best = child;
+            }
+        }
+        return best;
+    }
+
+    // Allocates the children, leaves the node unexpanded if the tree is full
+    private void expand(int node, Set<ChessMove> moves) {
+        int count = moves.size();
+        int start;
+        // Reserved by compare and set, so a full tree never hands out a range twice
+        do {
+            start = size.get();
+            if (start + count > capacity) {
+                firstChild.set(node, UNEXPANDED);
+                return;
+            }
+        } while (!size.compareAndSet(start, start + count));
+        int child = start;
+        for (ChessMove chessMove : moves) {
+            childCount[child] = 0;
+            move[child] = encode(chessMove);
+            visits.set(child, 0);
+            rewards.set(child, 0);
+            firstChild.set(child, UNEXPANDED);
+            child++;
+        }
+        childCount[node] = count;
+        // Publishes the children written above to the other threads
+        firstChild.set(node, start);
+    }
+
+    // Result for the side to move
+    private double playout(ChessBoard current, ThreadLocalRandom random) {
+        boolean white = current.isWhiteToMove();
+        if (playout == Playout.RANDOM) {
+            for (int ply = 0; ply < playoutDepth; ply++) {
+                Set<ChessMove> moves = current.getPossibleMoves();
+                if (moves.isEmpty()) {
+                    if (!current.isCheck()) return 0.5;
+                    return current.isWhiteToMove() == white ? 0 : 1;
+                }
+                if (current.isFiftyMoveDraw()) return 0.5;
+                int index = random.nextInt(moves.size());
+                for (ChessMove chessMove : moves) {
+                    if (index-- == 0) {
+                        current = current.performMove(chessMove);
+                        break;
+                    }
+                }
+            }
+        }
+        double value = evaluator.evaluate(current);
+        if (!white) value = -value;
+        // Logistic mapping of the pawn advantage to an expected result
+        return 1 / (1 + Math.pow(10, -value / 4));
+    }
+
+    private int getBestChild() {
+        int first = firstChild.get(root);
+        if (first < 0) return -1;
+        int best = -1;
+        for (int child = first; child < first + childCount[root]; child++) {
+            if (best == -1 || visits.get(child) > visits.get(best)) best = child;
+        }
+        return best;
+    }
+
+    private void allocate() {
+        firstChild = new AtomicIntegerArray(capacity);
+        childCount = new int[capacity];
+        move = new short[capacity];
+        visits = new AtomicIntegerArray(capacity);
+        rewards = new AtomicLongArray(capacity);
+    }
+
+    private void reset() {
+        size.set(1);
+        root = 0;
+        childCount[0] = 0;
+        move[0] = 0;
+        visits.set(0, 0);
+        rewards.set(0, 0);
+        firstChild.set(0, UNEXPANDED);
+    }
+
+    // Copies the subtree of a node into new arrays in breadth first order, keeping children blocks together
+    private void compact(int newRoot) {
+        AtomicIntegerArray oldFirstChild = firstChild;
+        int[] oldChildCount = childCount;
+        short[] oldMove = move;
+        AtomicIntegerArray oldVisits = visits;
+        AtomicLongArray oldRewards = rewards;
+        allocate();
+
+        int[] queue = new int[Math.max(16, size.get() / 4)];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = newRoot;
+        copy(oldFirstChild, oldChildCount, oldMove, oldVisits, oldRewards, newRoot, 0);
+        int next = 1;
+        // queue holds old indices, their copies are at head in the same order
+        while (head < tail) {
+            int old = queue[head];
+            int copyIndex = head++;
+            int first = oldFirstChild.get(old);
+            if (first < 0) continue;
+            int count = oldChildCount[old];
+            firstChild.set(copyIndex, next);
+            for (int i = 0; i < count; i++) {
+                if (tail == queue.length) queue = Arrays.copyOf(queue, queue.length * 2);
+                queue[tail++] = first + i;
+                copy(oldFirstChild, oldChildCount, oldMove, oldVisits, oldRewards, first + i, next++);
+            }
+        }
+        size.set(next);
+        root = 0;
+    }
+
+    private void copy(AtomicIntegerArray oldFirstChild, int[] oldChildCount, short[] oldMove, AtomicIntegerArray oldVisits,
+                      AtomicLongArray oldRewards, int from, int to) {
+        int first = oldFirstChild.get(from);
+        // Children indices are fixed once their block is copied
+        firstChild.set(to, first >= 0 ? UNEXPANDED : first);
+        childCount[to] = oldChildCount[from];
+        move[to] = oldMove[from];
+        visits.set(to, oldVisits.get(from));
+        rewards.set(to, oldRewards.get(from));
+    }
+
+    private static short encode(ChessMove chessMove) {
+        String name = chessMove.getName();
+        int promotion = name.length() > 4 ? PROMOTIONS.indexOf(name.charAt(4)) : 0;
+        return (short) (chessMove.getFrom() | chessMove.getTo() << 6 | promotion << 12);
+    }
+
+    private static String moveName(short encoded) {
+        String name = ChessUtils.squareIndexToName(encoded & 63) + ChessUtils.squareIndexToName(encoded >> 6 & 63);
+        int promotion = encoded >> 12 & 7;
+        return promotion == 0 ? name : name + PROMOTIONS.charAt(promotion);
+    }
+
+}
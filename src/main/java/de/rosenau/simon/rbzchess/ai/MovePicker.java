@@ -0,0 +1,241 @@
+package de.rosenau.simon.rbzchess.ai;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Yields the legal moves of a search node in stages: transposition table move, winning captures, killer moves,
+ * quiet moves and losing captures. A stage is generated only once the previous one is exhausted and every move
+ * is checked for legality only when it is picked, so a cutoff by an early move saves the rest of the work.
+ */
+
+final class MovePicker {
+
+    private static final int TABLE_MOVE = 0;
+    private static final int GENERATE_CAPTURES = 1;
+    private static final int WINNING_CAPTURES = 2;
+    private static final int KILLERS = 3;
+    private static final int GENERATE_QUIETS = 4;
+    private static final int QUIETS = 5;
+    private static final int LOSING_CAPTURES = 6;
+    private static final int DONE = 7;
+
+    private final ChessBoard board;
+    private final String tableMove;
+    private final String[] killers;
+
+    private int stage = TABLE_MOVE;
+    private int killerIndex;
+
+    private final List<ChessMove> moves = new ArrayList<>();
+    private int[] scores = new int[32];
+    private final List<ChessMove> losingCaptures = new ArrayList<>();
+    private int[] losingScores = new int[8];
+
+    private boolean quiet;
+
+    /**
+     * @param board     Board of the node
+     * @param tableMove Name of the transposition table move or null
+     * @param killers   Names of quiet moves that caused cutoffs in sibling nodes, entries may be null
+     */
+
+    MovePicker(ChessBoard board, String tableMove, String[] killers) {
+        this.board = board;
+        this.tableMove = tableMove;
+        this.killers = killers;
+    }
+
+    /**
+     * Picks the next legal move
+     *
+     * @return ChessMove or null if all moves have been picked
+     */
+
+    ChessMove next() {
+        while (true) {
+            switch (stage) {
+                case TABLE_MOVE:
+                    stage = GENERATE_CAPTURES;
+                    if (tableMove != null) {
+                        // Looked up on the board instead of taken from the table, a key collision yields null
+                        ChessMove move = board.getMove(tableMove);
+                        if (move != null) {
+                            quiet = isQuiet(move);
+                            return move;
+                        }
+                    }
+                    break;
+                case GENERATE_CAPTURES:
+                    scoreCaptures();
+                    stage = WINNING_CAPTURES;
+                    break;
+                case WINNING_CAPTURES: {
+                    ChessMove move = pickBest(moves, scores);
+                    if (move == null) {
+                        stage = KILLERS;
+                        break;
+                    }
+                    if (board.isLegal(move)) {
+                        quiet = false;
+                        return move;
+                    }
+                    break;
+                }
+                case KILLERS: {
+                    if (killers == null || killerIndex >= killers.length) {
+                        stage = GENERATE_QUIETS;
+                        break;
+                    }
+                    String name = killers[killerIndex++];
+                    if (name == null || name.equals(tableMove) || isKiller(name, killerIndex - 1)) break;
+                    // Killers come from other positions, the move might be a capture or illegal here
+                    ChessMove move = board.getMove(name);
+                    if (move != null && isQuiet(move)) {
+                        quiet = true;
+                        return move;
+                    }
+                    break;
+                }
+                case GENERATE_QUIETS:
+                    moves.clear();
+                    for (ChessMove move : board.getQuietMoves()) {
+                        String name = move.getName();
+                        if (name.equals(tableMove) || isKiller(name, killers == null ? 0 : killers.length)) continue;
+                        moves.add(move);
+                    }
+                    stage = QUIETS;
+                    break;
+                case QUIETS: {
+                    if (moves.isEmpty()) {
+                        stage = LOSING_CAPTURES;
+                        break;
+                    }
+                    ChessMove move = moves.remove(moves.size() - 1);
+                    if (board.isLegal(move)) {
+                        quiet = true;
+                        return move;
+                    }
+                    break;
+                }
+                case LOSING_CAPTURES: {
+                    ChessMove move = pickBest(losingCaptures, losingScores);
+                    if (move == null) {
+                        stage = DONE;
+                        break;
+                    }
+                    if (board.isLegal(move)) {
+                        quiet = false;
+                        return move;
+                    }
+                    break;
+                }
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Whether the last picked move is neither a capture nor a promotion
+     *
+     * @return true if quiet
+     */
+
+    boolean isQuiet() {
+        return quiet;
+    }
+
+    /**
+     * Sorts the captures into winning and losing ones by the values of the capturing and the captured piece.
+     * Capturing a more valuable or an undefended piece wins, capturing a less valuable defended piece likely loses.
+     */
+
+    private void scoreCaptures() {
+        boolean white = board.isWhiteToMove();
+        for (ChessMove move : board.getCaptures()) {
+            if (move.getName().equals(tableMove)) continue;
+            int to = move.getTo();
+            int attacker = value(board.getPiece(move.getFrom()));
+            char captured = board.getPiece(to);
+            // En passent captures a pawn on another square
+            int victim = captured != 0 ? value(captured) : (move.getName().length() > 4 ? 0 : 1);
+            if (move.getName().length() > 4) victim += value(move.getName().charAt(4)) - 1;
+
+            // Most valuable victim first, least valuable attacker among equals
+            int score = victim * 16 - attacker;
+            if (victim >= attacker || !board.isAttacked(to, !white)) {
+                scores = add(moves, scores, move, score);
+            } else {
+                losingScores = add(losingCaptures, losingScores, move, score);
+            }
+        }
+    }
+
+    private boolean isKiller(String name, int before) {
+        for (int i = 0; i < before; i++) {
+            if (name.equals(killers[i])) return true;
+        }
+        return false;
+    }
+
+    private boolean isQuiet(ChessMove move) {
+        if (move.getName().length() > 4 || board.getPiece(move.getTo()) != 0) return false;
+        // En passent is the only pawn move changing the file without a piece on the target square
+        char piece = board.getPiece(move.getFrom());
+        return (piece != 'P' && piece != 'p') || move.getFrom() % 8 == move.getTo() % 8;
+    }
+
+    private static int[] add(List<ChessMove> moves, int[] scores, ChessMove move, int score) {
+        if (moves.size() == scores.length) scores = Arrays.copyOf(scores, scores.length * 2);
+        scores[moves.size()] = score;
+        moves.add(move);
+        return scores;
+    }
+
+    // Removes and returns the highest scored move, selecting lazily instead of sorting as most nodes use few moves
+    private static ChessMove pickBest(List<ChessMove> moves, int[] scores) {
+        int size = moves.size();
+        if (size == 0) return null;
+        int best = 0;
+        for (int i = 1; i < size; i++) {
+            if (scores[i] > scores[best]) best = i;
+        }
+        ChessMove move = moves.get(best);
+        moves.set(best, moves.get(size - 1));
+        scores[best] = scores[size - 1];
+        moves.remove(size - 1);
+        return move;
+    }
+
+    private static int value(char piece) {
+        switch (piece) {
+            case 'P':
+            case 'p':
+                return 1;
+            case 'N':
+            case 'n':
+            case 'B':
+            case 'b':
+                return 3;
+            case 'R':
+            case 'r':
+                return 5;
+            case 'Q':
+            case 'q':
+                return 9;
+            case 'K':
+            case 'k':
+                return 100;
+            default:
+                return 0;
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+package de.rosenau.simon.rbzchess.ai;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.ChessUtils;
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+import de.rosenau.simon.rbzchess.boards.Zobrist;
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Opening book in the Polyglot .bin format: 16 byte big endian entries of key, move, weight and learn value,
+ * sorted by key. The file is memory-mapped and probed by binary search. Keys are calculated by
+ * {@link ChessBoard#key()}, see {@link Zobrist#isPolyglot()} for compatibility with third-party books.
+ */
+
+public class OpeningBook implements Closeable {
+
+    public static final int ENTRY_SIZE = 16;
+
+    private static final String PROMOTIONS = " nbrq";
+    // Entries read per position, far more than any book holds
+    private static final int MAX_ENTRIES = 64;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    @Getter
+    private final int size;
+
+    // Probe buffers of getMove and getMoves, a book may be shared between searches
+    private final ThreadLocal<short[]> scratchMoves = ThreadLocal.withInitial(() -> new short[MAX_ENTRIES]);
+    private final ThreadLocal<int[]> scratchWeights = ThreadLocal.withInitial(() -> new int[MAX_ENTRIES]);
+
+    private OpeningBook(FileChannel channel, MappedByteBuffer buffer, int size) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    /**
+     * Memory-maps a Polyglot book
+     *
+     * @param path Book file
+     * @return OpeningBook
+     * @throws IOException if the file can not be read or is no Polyglot book
+     */
+
+    public static OpeningBook open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        long length = channel.size();
+        if (length % ENTRY_SIZE != 0 || length > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException("Not a Polyglot book: " + path);
+        }
+        return new OpeningBook(channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, length), (int) (length / ENTRY_SIZE));
+    }
+
+    /**
+     * Looks up all entries of a position without allocating
+     *
+     * @param key     Zobrist key of the position
+     * @param moves   Receives the Polyglot encoded moves
+     * @param weights Receives the weights of the moves
+     * @return Number of entries written, at most the length of the arrays
+     */
+
+    public int probe(long key, short[] moves, int[] weights) {
+        // Lower bound of the key, keys are sorted as unsigned numbers
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Long.compareUnsigned(buffer.getLong(middle * ENTRY_SIZE), key) < 0) low = middle + 1;
+            else high = middle;
+        }
+
+        int count = 0;
+        for (int i = low; i < size && count < moves.length && count < weights.length; i++) {
+            int offset = i * ENTRY_SIZE;
+            if (buffer.getLong(offset) != key) break;
+            moves[count] = buffer.getShort(offset + 8);
+            weights[count] = buffer.getShort(offset + 10) & 0xFFFF;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the legal book moves of a position ordered by descending weight
+     *
+     * @param board Position
+     * @return List of ChessMove's, empty if the position is not in the book
+     */
+
+    public List<ChessMove> getMoves(ChessBoard board) {
+        short[] moves = scratchMoves.get();
+        int[] weights = scratchWeights.get();
+        int count = probe(board.key(), moves, weights);
+        List<ChessMove> list = new ArrayList<>();
+        if (count == 0) return list;
+
+        // Entries are not guaranteed to be sorted by weight
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> weights[b] - weights[a]);
+
+        for (int i : order) {
+            ChessMove move = resolve(moves[i], board);
+            if (move != null) list.add(move);
+        }
+        return list;
+    }
+
+    /**
+     * Picks a legal book move at random, proportional to the weights
+     *
+     * @param board  Position
+     * @param random Source of randomness
+     * @return ChessMove or null if the position is not in the book
+     */
+
+    public ChessMove getMove(ChessBoard board, Random random) {
+        short[] moves = scratchMoves.get();
+        int[] weights = scratchWeights.get();
+        int count = probe(board.key(), moves, weights);
+        if (count == 0) return null;
+
+        long total = 0;
+        for (int i = 0; i < count; i++) total += weights[i];
+        if (total == 0) return null;
+
+        // Only the picked entry is checked for legality
+        long pick = (long) (random.nextDouble() * total);
+        for (int i = 0; i < count; i++) {
+            pick -= weights[i];
+            if (pick < 0) return resolve(moves[i], board);
+        }
+        return null;
+    }
+
+    /**
+     * Converts a Polyglot encoded move to its name, e.g. e7e8q. Castling is encoded as king captures rook by Polyglot.
+     *
+     * @param move Polyglot move
+     * @return name
+     */
+
+    public static String moveName(short move) {
+        int toFile = move & 7;
+        int toRow = move >> 3 & 7;
+        int fromFile = move >> 6 & 7;
+        int fromRow = move >> 9 & 7;
+        int promotion = move >> 12 & 7;
+        String name = ChessUtils.squareIndexToName((7 - fromRow) * 8 + fromFile) + ChessUtils.squareIndexToName((7 - toRow) * 8 + toFile);
+        if (promotion != 0 && promotion < PROMOTIONS.length()) name += PROMOTIONS.charAt(promotion);
+        return name;
+    }
+
+    // Legal move of an entry, null for entries not matching the position
+    private static ChessMove resolve(short encoded, ChessBoard board) {
+        String name = moveName(encoded);
+        ChessMove move = board.getMove(name);
+        if (move != null) return move;
+
+        // A king capturing its own rook can only be castling
+        switch (name) {
+            case "e1h1":
+                return board.getMove("e1g1");
+            case "e1a1":
+                return board.getMove("e1c1");
+            case "e8h8":
+                return board.getMove("e8g8");
+            case "e8a8":
+                return board.getMove("e8c8");
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,20 @@
+package de.rosenau.simon.rbzchess.ai;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Project created by Simon Rosenau.
+ */
+
+@RequiredArgsConstructor
+@Getter
+public class ScoredMove {
+
+    private final ChessMove move;
+    // Score relative to the side to move
+    private final double score;
+    private final int depth;
+
+}
@@ -0,0 +1,46 @@
+package de.rosenau.simon.rbzchess.ai;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+
+/**
+ * Project created by Simon Rosenau.
+ */
+
+public interface SearchListener {
+
+    /**
+     * Called on the search thread after every completed iteration of the iterative deepening
+     *
+     * @param depth    Completed depth
+     * @param score    Score of the best move relative to the side to move
+     * @param bestMove Best move found so far
+     * @param metrics  Metrics of the running search, only valid during the call
+     */
+
+    void onIteration(int depth, double score, ChessMove bestMove, SearchMetrics metrics);
+
+    /**
+     * Called on the search thread after every completed iteration for each line of a multi line search,
+     * see {@link Minimax#analyze(int)}
+     *
+     * @param depth   Completed depth
+     * @param line    Index of the line, 0 for the best
+     * @param score   Score of the move relative to the side to move
+     * @param move    Move of the line
+     * @param metrics Metrics of the running search, only valid during the call
+     */
+
+    default void onLine(int depth, int line, double score, ChessMove move, SearchMetrics metrics) {
+    }
+
+    /**
+     * Called on the search thread when the search has finished
+     *
+     * @param bestMove Best move or null if there is no legal move
+     * @param metrics  Final metrics of the search
+     */
+
+    default void onSearchFinished(ChessMove bestMove, SearchMetrics metrics) {
+    }
+
+}
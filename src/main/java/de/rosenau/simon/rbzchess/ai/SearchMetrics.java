@@ -0,0 +1,165 @@
+package de.rosenau.simon.rbzchess.ai;
+
+import lombok.Getter;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Counters of a single search thread. Every thread owns its own instance and writes plain fields,
+ * so counting adds no contention to the search. Results of several threads are combined with {@link #merge(SearchMetrics)}.
+ */
+
+@Getter
+public class SearchMetrics {
+
+    public static final int MAX_DEPTH = 128;
+
+    // Cutoffs at move index 0..6 are counted separately, later moves share the last bucket
+    public static final int CUTOFF_BUCKETS = 8;
+
+    private long nodes;
+    private long tablebaseHits;
+    private long cacheHits;
+    private long tableProbes;
+    private long tableHits;
+    private long researches;
+    private long aspirationFailLows;
+    private long aspirationFailHighs;
+    private int selectiveDepth;
+    private final long[] cutoffs = new long[CUTOFF_BUCKETS];
+
+    private int depth;
+    private final long[] iterationNanos = new long[MAX_DEPTH + 1];
+    private final long[] iterationNodes = new long[MAX_DEPTH + 1];
+
+    private long startNanos;
+    private long endNanos;
+
+    void start() {
+        startNanos = System.nanoTime();
+        endNanos = 0;
+    }
+
+    void node(int ply) {
+        nodes++;
+        if (ply > selectiveDepth) selectiveDepth = ply;
+    }
+
+    void tablebaseHit() {
+        tablebaseHits++;
+    }
+
+    void cacheHit() {
+        cacheHits++;
+    }
+
+    void tableProbe() {
+        tableProbes++;
+    }
+
+    void tableHit() {
+        tableHits++;
+    }
+
+    void research() {
+        researches++;
+    }
+
+    void aspirationFailLow() {
+        aspirationFailLows++;
+    }
+
+    void aspirationFailHigh() {
+        aspirationFailHighs++;
+    }
+
+    void cutoff(int moveIndex) {
+        cutoffs[Math.min(moveIndex, CUTOFF_BUCKETS - 1)]++;
+    }
+
+    void finishIteration(int depth, long iterationStartNanos, long iterationStartNodes) {
+        this.depth = depth;
+        iterationNanos[depth] = System.nanoTime() - iterationStartNanos;
+        iterationNodes[depth] = nodes - iterationStartNodes;
+    }
+
+    void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    /**
+     * Time since the search started, or the total time if it has finished
+     *
+     * @return nanoseconds
+     */
+
+    public long getElapsedNanos() {
+        if (startNanos == 0) return 0;
+        return (endNanos != 0 ? endNanos : System.nanoTime()) - startNanos;
+    }
+
+    public long getNodesPerSecond() {
+        long elapsed = getElapsedNanos();
+        return elapsed == 0 ? 0 : nodes * 1_000_000_000L / elapsed;
+    }
+
+    /**
+     * Effective branching factor, the growth of nodes between the last two completed iterations
+     *
+     * @return branching factor or 0 if less than two iterations completed
+     */
+
+    public double getBranchingFactor() {
+        if (depth < 2 || iterationNodes[depth - 1] == 0) return 0;
+        return (double) iterationNodes[depth] / iterationNodes[depth - 1];
+    }
+
+    /**
+     * Share of transposition table probes that found an entry of the position
+     *
+     * @return rate between 0 and 1
+     */
+
+    public double getTableHitRate() {
+        return tableProbes == 0 ? 0 : (double) tableHits / tableProbes;
+    }
+
+    /**
+     * Share of beta cutoffs caused by the first move searched, a measure of move ordering quality
+     *
+     * @return rate between 0 and 1
+     */
+
+    public double getFirstMoveCutoffRate() {
+        long total = 0;
+        for (long cutoff : cutoffs) total += cutoff;
+        return total == 0 ? 0 : (double) cutoffs[0] / total;
+    }
+
+    /**
+     * Adds the counters of another thread to this instance. The other instance must not be written concurrently.
+     *
+     * @param other Metrics of another search thread
+     */
+
+    public void merge(SearchMetrics other) {
+        nodes += other.nodes;
+        tablebaseHits += other.tablebaseHits;
+        cacheHits += other.cacheHits;
+        tableProbes += other.tableProbes;
+        tableHits += other.tableHits;
+        researches += other.researches;
+        aspirationFailLows += other.aspirationFailLows;
+        aspirationFailHighs += other.aspirationFailHighs;
+        selectiveDepth = Math.max(selectiveDepth, other.selectiveDepth);
+        for (int i = 0; i < CUTOFF_BUCKETS; i++) cutoffs[i] += other.cutoffs[i];
+        for (int i = 0; i <= MAX_DEPTH; i++) {
+            iterationNanos[i] = Math.max(iterationNanos[i], other.iterationNanos[i]);
+            iterationNodes[i] += other.iterationNodes[i];
+        }
+        depth = Math.max(depth, other.depth);
+        if (startNanos == 0 || (other.startNanos != 0 && other.startNanos < startNanos)) startNanos = other.startNanos;
+        endNanos = Math.max(endNanos, other.endNanos);
+    }
+
+}
@@ -0,0 +1,44 @@
+package de.rosenau.simon.rbzchess.ai;
+
+/**
+ * Project created by Simon Rosenau.
+ */
+
+public interface SearchStatisticsMXBean {
+
+    long getSearches();
+
+    long getTotalNodes();
+
+    long getLastNodesPerSecond();
+
+    int getLastDepth();
+
+    int getLastSelectiveDepth();
+
+    double getLastBranchingFactor();
+
+    double getLastFirstMoveCutoffRate();
+
+    long getLastSearchMillis();
+
+    long getTotalResearches();
+
+    long getTotalAspirationFailLows();
+
+    long getTotalAspirationFailHighs();
+
+    double getLastTableHitRate();
+
+    long getTotalTableProbes();
+
+    long getTotalTableHits();
+
+    long getTotalTablebaseHits();
+
+    long getTotalCacheHits();
+
+    // Beta cutoffs per move index, see SearchMetrics#CUTOFF_BUCKETS
+    long[] getTotalCutoffs();
+
+}
@@ -0,0 +1,145 @@
+package de.rosenau.simon.rbzchess.ai;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.ChessUtils;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Hash table of search results indexed by the position key. Entries live in two parallel long arrays, the packed
+ * data and the key xor the data, so a torn write of concurrent searches fails the key check instead of
+ * returning mixed data. Colliding positions replace each other.
+ */
+
+public class TranspositionTable {
+
+    public static final int DEFAULT_SIZE_BITS = 16;
+
+    // Bound types of stored scores
+    public static final int EXACT = 0;
+    public static final int LOWER = 1;
+    public static final int UPPER = 2;
+
+    // Packed entry: bound (bits 0-1), used flag (bit 2), depth (bits 8-15), move (bits 16-31), score as float (bits 32-63).
+    // The used flag keeps the data of stored entries from ever being 0
+    private static final long USED = 1L << 2;
+
+    private static final String PROMOTIONS = " nbrq";
+
+    private final long[] keys;
+    private final long[] data;
+    private final int mask;
+
+    @Getter
+    private final int size;
+
+    /**
+     * Creates an empty table
+     *
+     * @param sizeBits Base 2 logarithm of the number of entries, every entry takes 16 bytes
+     */
+
+    public TranspositionTable(int sizeBits) {
+        if (sizeBits < 1 || sizeBits > 30) throw new IllegalArgumentException("Invalid table size 2^" + sizeBits);
+        this.size = 1 << sizeBits;
+        this.mask = size - 1;
+        this.keys = new long[size];
+        this.data = new long[size];
+    }
+
+    /**
+     * Looks up the entry of a position
+     *
+     * @param key Position key
+     * @return Packed entry to read with the static accessors, 0 if there is none
+     */
+
+    public long probe(long key) {
+        int index = (int) key & mask;
+        long entry = data[index];
+        return (keys[index] ^ entry) == key ? entry : 0;
+    }
+
+    /**
+     * Stores the result of a search, keeping the previous move if no move is given for the same position
+     *
+     * @param key   Position key
+     * @param move  Best or refuting move, may be null
+     * @param depth Remaining depth searched
+     * @param bound EXACT, LOWER or UPPER
+     * @param score Score relative to the side to move
+     */
+
+    public void store(long key, ChessMove move, int depth, int bound, double score) {
+        int index = (int) key & mask;
+        int encoded = move != null ? encodeMove(move) : 0;
+        if (encoded == 0) {
+            long previous = data[index];
+            if ((keys[index] ^ previous) == key) encoded = (int) (previous >>> 16 & 0xFFFF);
+        }
+        long entry = (long) Float.floatToIntBits((float) score) << 32
+                | (long) encoded << 16 | (long) Math.min(depth, 255) << 8 | USED | bound;
+        data[index] = entry;
+        keys[index] = key ^ entry;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(data, 0);
+    }
+
+    public static int getBound(long entry) {
+        return (int) (entry & 3);
+    }
+
+    public static int getDepth(long entry) {
+        return (int) (entry >>> 8 & 0xFF);
+    }
+
+    public static double getScore(long entry) {
+        return Float.intBitsToFloat((int) (entry >>> 32));
+    }
+
+    /**
+     * Name of the stored move
+     *
+     * @param entry Packed entry
+     * @return Move name or null if the entry has no move
+     */
+
+    public static String getMoveName(long entry) {
+        return decodeMove((int) (entry >>> 16 & 0xFFFF));
+    }
+
+    /**
+     * Packs a move into 16 bits: from square, to square and promotion piece. 0 is never a valid move as from and
+     * to differ.
+     *
+     * @param move Move to pack
+     * @return Packed move
+     */
+
+    public static int encodeMove(ChessMove move) {
+        String name = move.getName();
+        int promotion = name.length() > 4 ? PROMOTIONS.indexOf(name.charAt(4)) : 0;
+        return move.getFrom() | move.getTo() << 6 | promotion << 12;
+    }
+
+    /**
+     * Name of a move packed by {@link #encodeMove(ChessMove)}
+     *
+     * @param move Packed move
+     * @return Move name or null for 0
+     */
+
+    public static String decodeMove(int move) {
+        if (move == 0) return null;
+        String name = ChessUtils.squareIndexToName(move & 63) + ChessUtils.squareIndexToName(move >> 6 & 63);
+        int promotion = move >> 12 & 7;
+        return promotion == 0 ? name : name + PROMOTIONS.charAt(promotion);
+    }
+
+}
@@ -0,0 +1,172 @@
+package de.rosenau.simon.rbzchess.ai;
+
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Evaluation as a weighted sum of features counted from the view of white, white's minus black's. Being linear in
+ * its weights the evaluation can be tuned by gradient descent, see {@link #features(ChessBoard, double[])}.
+ */
+
+public class WeightedEvaluator implements Evaluator {
+
+    public static final String[] NAMES = {
+            "pawn", "knight", "bishop", "rook", "queen",
+            "pawnAdvance", "doubledPawn", "knightCenter", "bishopCenter", "queenCenter", "kingCenter",
+            "bishopPair", "rookOpenFile", "tempo"
+    };
+
+    public static final double[] DEFAULT_WEIGHTS = {
+            1, 3, 3, 5, 9,
+            0.05, -0.2, 0.1, 0.05, 0.02, -0.1,
+            0.3, 0.2, 0.1
+    };
+
+    private static final int PAWN = 0;
+    private static final int KNIGHT = 1;
+    private static final int BISHOP = 2;
+    private static final int ROOK = 3;
+    private static final int QUEEN = 4;
+    private static final int PAWN_ADVANCE = 5;
+    private static final int DOUBLED_PAWN = 6;
+    private static final int KNIGHT_CENTER = 7;
+    private static final int BISHOP_CENTER = 8;
+    private static final int QUEEN_CENTER = 9;
+    private static final int KING_CENTER = 10;
+    private static final int BISHOP_PAIR = 11;
+    private static final int ROOK_OPEN_FILE = 12;
+    private static final int TEMPO = 13;
+
+    // Rings around the center, 3 on d4, d5, e4 and e5 down to 0 on the edge
+    private static final int[] CENTER = new int[64];
+
+    static {
+        for (int square = 0; square < 64; square++) {
+            int distance = Math.max(Math.abs(2 * (square % 8) - 7), Math.abs(2 * (square / 8) - 7));
+            CENTER[square] = (7 - distance) / 2;
+        }
+    }
+
+    private final double[] weights;
+    // Features of evaluate(ChessBoard), the evaluator is shared between threads
+    private final ThreadLocal<double[]> scratch = ThreadLocal.withInitial(() -> new double[NAMES.length]);
+
+    public WeightedEvaluator() {
+        this(DEFAULT_WEIGHTS);
+    }
+
+    public WeightedEvaluator(double[] weights) {
+        if (weights.length != NAMES.length) throw new IllegalArgumentException("Expected " + NAMES.length + " weights");
+        this.weights = weights.clone();
+    }
+
+    /**
+     * Reads weights from lines starting with a name of {@link #NAMES} followed by the value, other lines are
+     * ignored and missing weights keep their default, so tuner checkpoints can be loaded directly
+     *
+     * @param path Weight file
+     * @return WeightedEvaluator
+     * @throws IOException if the file can not be read
+     */
+
+    public static WeightedEvaluator load(Path path) throws IOException {
+        double[] weights = DEFAULT_WEIGHTS.clone();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length < 2) continue;
+            int index = Arrays.asList(NAMES).indexOf(fields[0]);
+            if (index >= 0) weights[index] = Double.parseDouble(fields[1]);
+        }
+        return new WeightedEvaluator(weights);
+    }
+
+    public double[] getWeights() {
+        return weights.clone();
+    }
+
+    @Override
+    public double evaluate(ChessBoard board) {
+        double[] features = scratch.get();
+        features(board, features);
+        double value = 0;
+        for (int i = 0; i < features.length; i++) value += weights[i] * features[i];
+        return value;
+    }
+
+    /**
+     * Counts the features of a board
+     *
+     * @param board    Board to count
+     * @param features Array of {@link #NAMES} length, overwritten with the feature values
+     */
+
+    public static void features(ChessBoard board, double[] features) {
+        Arrays.fill(features, 0);
+        // Pawns per file, a byte per file
+        long whitePawnFiles = 0;
+        long blackPawnFiles = 0;
+        int whiteBishops = 0;
+        int blackBishops = 0;
+        for (int square = 0; square < 64; square++) {
+            char piece = board.getPiece(square);
+            if (piece == 0) continue;
+            boolean white = piece < 'a';
+            int sign = white ? 1 : -1;
+            int rank = 7 - square / 8;
+            switch (Character.toLowerCase(piece)) {
+                case 'p':
+                    features[PAWN] += sign;
+                    features[PAWN_ADVANCE] += sign * (white ? rank - 1 : 6 - rank);
+                    if (white) whitePawnFiles += 1L << square % 8 * 8;
+                    else blackPawnFiles += 1L << square % 8 * 8;
+                    break;
+                case 'n':
+                    features[KNIGHT] += sign;
+                    features[KNIGHT_CENTER] += sign * CENTER[square];
+                    break;
+                case 'b':
+                    features[BISHOP] += sign;
+                    features[BISHOP_CENTER] += sign * CENTER[square];
+                    if (white) whiteBishops++;
+                    else blackBishops++;
+                    break;
+                case 'r':
+                    features[ROOK] += sign;
+                    break;
+                case 'q':
+                    features[QUEEN] += sign;
+                    features[QUEEN_CENTER] += sign * CENTER[square];
+                    break;
+                case 'k':
+                    features[KING_CENTER] += sign * CENTER[square];
+                    break;
+                default:
+                    break;
+            }
+        }
+        for (int file = 0; file < 8; file++) {
+            int whitePawns = (int) (whitePawnFiles >>> file * 8 & 0xFF);
+            int blackPawns = (int) (blackPawnFiles >>> file * 8 & 0xFF);
+            features[DOUBLED_PAWN] += Math.max(0, whitePawns - 1) - Math.max(0, blackPawns - 1);
+        }
+        // Rooks need the pawn files, so they are counted in a second pass
+        long pawnFiles = whitePawnFiles | blackPawnFiles;
+        for (int square = 0; square < 64; square++) {
+            char piece = board.getPiece(square);
+            if ((piece == 'R' || piece == 'r') && (pawnFiles >>> square % 8 * 8 & 0xFF) == 0) {
+                features[ROOK_OPEN_FILE] += piece == 'R' ? 1 : -1;
+            }
+        }
+        if (whiteBishops >= 2) features[BISHOP_PAIR]++;
+        if (blackBishops >= 2) features[BISHOP_PAIR]--;
+        features[TEMPO] = board.isWhiteToMove() ? 1 : -1;
+    }
+
+}
@@ -0,0 +1,189 @@
+package de.rosenau.simon.rbzchess.ai.nnue;
+
+import de.rosenau.simon.rbzchess.ai.EvaluationStack;
+import de.rosenau.simon.rbzchess.ai.Evaluator;
+import de.rosenau.simon.rbzchess.ai.SearchMetrics;
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+import de.rosenau.simon.rbzchess.boards.Standard;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Evaluator running a {@link NnueNetwork}. Boards evaluated on their own are accumulated from scratch, searches using
+ * {@link #newStack()} derive the accumulators of a board from its parent by subtracting the features of the squares
+ * the move emptied or changed and adding the new ones. Updates are lazy: a pushed board is only accumulated once it
+ * or a board above it is evaluated, so interior nodes of the search cost nothing until a leaf below them needs them.
+ * The loops are plain int16 array arithmetic over contiguous weight rows, which the JIT vectorises.
+ */
+
+public class NnueEvaluator implements Evaluator {
+
+    // Feature index of a piece from the view of white, -1 for empty squares
+    private static final int[] PIECE_INDEX = new int[128];
+
+    static {
+        Arrays.fill(PIECE_INDEX, -1);
+        String pieces = "PNBRQKpnbrqk";
+        for (int i = 0; i < pieces.length(); i++) PIECE_INDEX[pieces.charAt(i)] = i;
+    }
+
+    static {
+        // Known network: one hidden unit saturated at 1.0, output weight 1.0 for the side to move and bias 0.5
+        NnueNetwork known = new NnueNetwork(1, new short[NnueNetwork.FEATURES], new short[]{NnueNetwork.QA},
+                new short[]{NnueNetwork.QB, 0}, NnueNetwork.QA * NnueNetwork.QB / 2);
+        double expected = 1.5 * NnueNetwork.SCALE / 100;
+        double score = new NnueEvaluator(known).evaluate(new Standard("4k3/8/8/8/8/8/8/4K3 w - - 0 1"));
+        if (score != expected) throw new IllegalStateException("Output quantisation broken, " + score + " instead of " + expected);
+    }
+
+    @Getter
+    private final NnueNetwork network;
+    private final int hiddenSize;
+
+    // Accumulators of evaluate(ChessBoard), the evaluator is shared between threads
+    private final ThreadLocal<short[][]> scratch;
+
+    public NnueEvaluator(NnueNetwork network) {
+        this.network = network;
+        this.hiddenSize = network.getHiddenSize();
+        this.scratch = ThreadLocal.withInitial(() -> new short[2][hiddenSize]);
+    }
+
+    public static NnueEvaluator load(Path path) throws IOException {
+        return new NnueEvaluator(NnueNetwork.load(path));
+    }
+
+    @Override
+    public double evaluate(ChessBoard board) {
+        short[][] accumulators = scratch.get();
+        refresh(board, accumulators[0], accumulators[1]);
+        return output(board, accumulators[0], accumulators[1]);
+    }
+
+    @Override
+    public EvaluationStack newStack() {
+        return new Stack();
+    }
+
+    private void refresh(ChessBoard board, short[] white, short[] black) {
+        short[] biases = network.getFeatureBiases();
+        System.arraycopy(biases, 0, white, 0, hiddenSize);
+        System.arraycopy(biases, 0, black, 0, hiddenSize);
+        for (int square = 0; square < 64; square++) {
+            char piece = board.getPiece(square);
+            if (piece == 0) continue;
+            add(white, feature(piece, square, true));
+            add(black, feature(piece, square, false));
+        }
+    }
+
+    // Accumulators of the changed squares only, parent and child are copies of the same position before and after a move
+    private void update(ChessBoard parent, ChessBoard child, short[] parentWhite, short[] parentBlack, short[] white, short[] black) {
+        System.arraycopy(parentWhite, 0, white, 0, hiddenSize);
+        System.arraycopy(parentBlack, 0, black, 0, hiddenSize);
+        for (int square = 0; square < 64; square++) {
+            char before = parent.getPiece(square);
+            char after = child.getPiece(square);
+            if (before == after) continue;
+            if (before != 0) {
+                subtract(white, feature(before, square, true));
+                subtract(black, feature(before, square, false));
+            }
+            if (after != 0) {
+                add(white, feature(after, square, true));
+                add(black, feature(after, square, false));
+            }
+        }
+    }
+
+    // Black sees the board mirrored with the colors swapped, so both perspectives share the weights
+    private static int feature(char piece, int square, boolean whitePerspective) {
+        int index = PIECE_INDEX[piece];
+        return whitePerspective ? index * 64 + square : (index + 6) % 12 * 64 + (square ^ 56);
+    }
+
+    private void add(short[] accumulator, int feature) {
+        short[] weights = network.getFeatureWeights();
+        int offset = feature * hiddenSize;
+        for (int i = 0; i < hiddenSize; i++) accumulator[i] = (short) (accumulator[i] + weights[offset + i]);
+    }
+
+    private void subtract(short[] accumulator, int feature) {
+        short[] weights = network.getFeatureWeights();
+        int offset = feature * hiddenSize;
+        for (int i = 0; i < hiddenSize; i++) accumulator[i] = (short) (accumulator[i] - weights[offset + i]);
+    }
+
+    // Score in pawns from the view of white
+    private double output(ChessBoard board, short[] white, short[] black) {
+        boolean whiteToMove = board.isWhiteToMove();
+        short[] us = whiteToMove ? white : black;
+        short[] them = whiteToMove ? black : white;
+        short[] weights = network.getOutputWeights();
+        long sum = 0;
+        for (int i = 0; i < hiddenSize; i++) sum += Math.min(Math.max(us[i], 0), NnueNetwork.QA) * weights[i];
+        for (int i = 0; i < hiddenSize; i++) sum += Math.min(Math.max(them[i], 0), NnueNetwork.QA) * weights[hiddenSize + i];
+        // Activations carry QA and output weights QB, so the sum and the bias are quantised by QA * QB
+        long centipawns = (sum + network.getOutputBias()) * NnueNetwork.SCALE / (NnueNetwork.QA * NnueNetwork.QB);
+        return (whiteToMove ? centipawns : -centipawns) / 100.0;
+    }
+
+    private class Stack implements EvaluationStack {
+
+        private ChessBoard[] boards = new ChessBoard[SearchMetrics.MAX_DEPTH + 1];
+        private short[][] white = new short[boards.length][];
+        private short[][] black = new short[boards.length][];
+        private boolean[] computed = new boolean[boards.length];
+        private int top = -1;
+
+        @Override
+        public void reset(ChessBoard root) {
+            Arrays.fill(boards, null);
+            top = -1;
+            push(root);
+        }
+
+        @Override
+        public void push(ChessBoard child) {
+            if (++top == boards.length) {
+                boards = Arrays.copyOf(boards, top * 2);
+                white = Arrays.copyOf(white, top * 2);
+                black = Arrays.copyOf(black, top * 2);
+                computed = Arrays.copyOf(computed, top * 2);
+            }
+            if (white[top] == null) {
+                white[top] = new short[hiddenSize];
+                black[top] = new short[hiddenSize];
+            }
+            boards[top] = child;
+            computed[top] = false;
+        }
+
+        @Override
+        public void pop() {
+            boards[top--] = null;
+        }
+
+        @Override
+        public double evaluate() {
+            int first = top;
+            while (first > 0 && !computed[first]) first--;
+            if (!computed[first]) {
+                refresh(boards[first], white[first], black[first]);
+                computed[first] = true;
+            }
+            for (int i = first + 1; i <= top; i++) {
+                update(boards[i - 1], boards[i], white[i - 1], black[i - 1], white[i], black[i]);
+                computed[i] = true;
+            }
+            return output(boards[top], white[top], black[top]);
+        }
+
+    }
+
+}
@@ -0,0 +1,144 @@
+package de.rosenau.simon.rbzchess.ai.nnue;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Quantised weights of a perspective network: 768 piece-square inputs per side, a hidden layer of int16 accumulators
+ * shared by both perspectives, clipped ReLU and a single output. File layout, little endian: magic (4 bytes),
+ * version (4 bytes), hidden size (4 bytes), feature weights (int16, 768 rows of hidden size), feature biases (int16),
+ * output weights (int16, side to move first, then the other side), output bias (int32, quantised by QA * QB like
+ * the products of activations and output weights it is added to).
+ */
+
+@Getter
+public class NnueNetwork {
+
+    public static final int FEATURES = 768;
+
+    // Quantisation of the activations and the output weights, 1.0 is stored as QA and QB
+    public static final int QA = 255;
+    public static final int QB = 64;
+    // Centipawns of an output of 1.0
+    public static final int SCALE = 400;
+
+    private static final int MAGIC = 0x52425A4E; // "RBZN"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private final int hiddenSize;
+    // Row per feature, so updating an accumulator reads a contiguous slice
+    private final short[] featureWeights;
+    private final short[] featureBiases;
+    private final short[] outputWeights;
+    private final int outputBias;
+
+    /**
+     * @param hiddenSize     Accumulator size per perspective
+     * @param featureWeights Feature weights quantised by QA, row per feature
+     * @param featureBiases  Feature biases quantised by QA
+     * @param outputWeights  Output weights quantised by QB, side to move first
+     * @param outputBias     Output bias quantised by QA * QB
+     */
+
+    public NnueNetwork(int hiddenSize, short[] featureWeights, short[] featureBiases, short[] outputWeights, int outputBias) {
+        if (hiddenSize <= 0 || featureWeights.length != FEATURES * hiddenSize || featureBiases.length != hiddenSize
+                || outputWeights.length != 2 * hiddenSize) {
+            throw new IllegalArgumentException("Weights do not match hidden size " + hiddenSize);
+        }
+        this.hiddenSize = hiddenSize;
+        this.featureWeights = featureWeights;
+        this.featureBiases = featureBiases;
+        this.outputWeights = outputWeights;
+        this.outputBias = outputBias;
+    }
+
+    /**
+     * Loads a network file
+     *
+     * @param path Network file
+     * @return NnueNetwork
+     * @throws IOException if the file can not be read or is no network
+     */
+
+    public static NnueNetwork load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Not a network: " + path);
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) break;
+            }
+            buffer.flip();
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) throw new IOException("Not a network: " + path);
+            int version = buffer.getInt();
+            if (version != VERSION) throw new IOException("Unsupported network version " + version + ": " + path);
+            int hiddenSize = buffer.getInt();
+            if (hiddenSize <= 0 || buffer.remaining() != fileSize(hiddenSize) - HEADER_SIZE) {
+                throw new IOException("Invalid network size: " + path);
+            }
+            short[] featureWeights = new short[FEATURES * hiddenSize];
+            short[] featureBiases = new short[hiddenSize];
+            short[] outputWeights = new short[2 * hiddenSize];
+            buffer.asShortBuffer().get(featureWeights);
+            buffer.position(buffer.position() + featureWeights.length * 2);
+            buffer.asShortBuffer().get(featureBiases);
+            buffer.position(buffer.position() + featureBiases.length * 2);
+            buffer.asShortBuffer().get(outputWeights);
+            buffer.position(buffer.position() + outputWeights.length * 2);
+            return new NnueNetwork(hiddenSize, featureWeights, featureBiases, outputWeights, buffer.getInt());
+        }
+    }
+
+    /**
+     * Writes the network in the format read by {@link #load(Path)}
+     *
+     * @param path File to write, existing files are replaced
+     * @throws IOException if writing fails
+     */
+
+    public void save(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) fileSize(hiddenSize)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(hiddenSize);
+        for (short weight : featureWeights) buffer.putShort(weight);
+        for (short bias : featureBiases) buffer.putShort(bias);
+        for (short weight : outputWeights) buffer.putShort(weight);
+        buffer.putInt(outputBias);
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+
+    /**
+     * Creates an untrained network with small random weights, only meaningful for benchmarks and tests
+     *
+     * @param hiddenSize Accumulator size per perspective
+     * @param seed       Random seed
+     * @return NnueNetwork
+     */
+
+    public static NnueNetwork random(int hiddenSize, long seed) {
+        Random random = new Random(seed);
+        short[] featureWeights = new short[FEATURES * hiddenSize];
+        short[] featureBiases = new short[hiddenSize];
+        short[] outputWeights = new short[2 * hiddenSize];
+        for (int i = 0; i < featureWeights.length; i++) featureWeights[i] = (short) (random.nextGaussian() * QA / 8);
+        for (int i = 0; i < featureBiases.length; i++) featureBiases[i] = (short) (random.nextGaussian() * QA / 8);
+        for (int i = 0; i < outputWeights.length; i++) outputWeights[i] = (short) (random.nextGaussian() * QB / 4);
+        return new NnueNetwork(hiddenSize, featureWeights, featureBiases, outputWeights, 0);
+    }
+
+    private static long fileSize(int hiddenSize) {
+        return HEADER_SIZE + 2L * (FEATURES + 1 + 2) * hiddenSize + 4;
+    }
+
+}
@@ -0,0 +1,102 @@
+package de.rosenau.simon.rbzchess.ai.syzygy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Static index tables of the Syzygy position encoding. Squares in this package are numbered like in the
+ * table files: 0 = a1, 7 = h1, 63 = h8.
+ */
+
+final class Encoding {
+
+    // Squares below the a1-h8 diagonal to 0..27
+    static final int[] MAP_B1H1H7 = new int[64];
+    // Squares of the a1-d1-d4 triangle to 0..9, diagonal squares last
+    static final int[] MAP_A1D1D4 = new int[64];
+    // The 462 placements of two kings with the first one in the a1-d1-d4 triangle
+    static final int[][] MAP_KK = new int[10][64];
+    // Squares a2-h7 to 0..47, the pawn with the highest value leads
+    static final int[] MAP_PAWNS = new int[64];
+
+    static final long[][] BINOMIAL = new long[6][64];
+    static final int[][] LEAD_PAWN_IDX = new int[6][64];
+    static final int[][] LEAD_PAWNS_SIZE = new int[6][4];
+
+    static {
+        int code = 0;
+        for (int s = 0; s < 64; s++) {
+            if (offA1H8(s) < 0) MAP_B1H1H7[s] = code++;
+        }
+
+        List<Integer> diagonal = new ArrayList<>();
+        code = 0;
+        for (int s = 0; s <= 27; s++) {
+            if (offA1H8(s) < 0 && file(s) <= 3) MAP_A1D1D4[s] = code++;
+            else if (offA1H8(s) == 0 && file(s) <= 3) diagonal.add(s);
+        }
+        for (int s : diagonal) MAP_A1D1D4[s] = code++;
+
+        List<int[]> bothOnDiagonal = new ArrayList<>();
+        code = 0;
+        for (int idx = 0; idx < 10; idx++) {
+            for (int s1 = 0; s1 <= 27; s1++) {
+                // b1 is mapped to 0, every other square outside the triangle is 0 as well
+                if (MAP_A1D1D4[s1] != idx || (idx == 0 && s1 != 1)) continue;
+                for (int s2 = 0; s2 < 64; s2++) {
+                    if (Math.abs(file(s1) - file(s2)) <= 1 && Math.abs(rank(s1) - rank(s2)) <= 1) continue;
+                    if (offA1H8(s1) == 0 && offA1H8(s2) > 0) continue;
+                    if (offA1H8(s1) == 0 && offA1H8(s2) == 0) bothOnDiagonal.add(new int[]{idx, s2});
+                    else MAP_KK[idx][s2] = code++;
+                }
+            }
+        }
+        for (int[] pair : bothOnDiagonal) MAP_KK[pair[0]][pair[1]] = code++;
+
+        BINOMIAL[0][0] = 1;
+        for (int n = 1; n < 64; n++) {
+            for (int k = 0; k < 6 && k <= n; k++) {
+                BINOMIAL[k][n] = (k > 0 ? BINOMIAL[k - 1][n - 1] : 0) + (k < n ? BINOMIAL[k][n - 1] : 0);
+            }
+        }
+
+        int availableSquares = 47;
+        for (int leadPawnsCount = 1; leadPawnsCount <= 5; leadPawnsCount++) {
+            for (int f = 0; f <= 3; f++) {
+                int idx = 0;
+                for (int r = 1; r <= 6; r++) {
+                    int s = r * 8 + f;
+                    if (leadPawnsCount == 1) {
+                        MAP_PAWNS[s] = availableSquares--;
+                        MAP_PAWNS[s ^ 7] = availableSquares--;
+                    }
+                    LEAD_PAWN_IDX[leadPawnsCount][s] = idx;
+                    idx += BINOMIAL[leadPawnsCount - 1][MAP_PAWNS[s]];
+                }
+                LEAD_PAWNS_SIZE[leadPawnsCount][f] = idx;
+            }
+        }
+    }
+
+    private Encoding() {
+    }
+
+    static int file(int square) {
+        return square & 7;
+    }
+
+    static int rank(int square) {
+        return square >> 3;
+    }
+
+    static int offA1H8(int square) {
+        return rank(square) - file(square);
+    }
+
+    static int edgeDistance(int file) {
+        return Math.min(file, 7 - file);
+    }
+
+}
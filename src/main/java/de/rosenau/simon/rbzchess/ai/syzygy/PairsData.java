@@ -0,0 +1,183 @@
+package de.rosenau.simon.rbzchess.ai.syzygy;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * One compressed sub-table of a Syzygy file (per side to move and, with pawns, per file of the leading pawn).
+ * The values are compressed by recursive pairing of symbols followed by a canonical Huffman code.
+ */
+
+final class PairsData {
+
+    static final int FLAG_STM = 1;
+    static final int FLAG_MAPPED = 2;
+    static final int FLAG_WIN_PLIES = 4;
+    static final int FLAG_LOSS_PLIES = 8;
+    static final int FLAG_WIDE = 16;
+    static final int FLAG_SINGLE_VALUE = 128;
+
+    private static final int SPARSE_ENTRY_SIZE = 6;
+
+    int flags;
+
+    // Piece codes in encoding order and the groups they form
+    final int[] pieces = new int[7];
+    final long[] groupIdx = new long[8];
+    final int[] groupLen = new int[8];
+    final int[] mapIdx = new int[4];
+
+    private long sizeofBlock;
+    private long span;
+    private long numBlocks;
+    private int minSymLen;
+    private long sparseIndexSize;
+    private long blockLengthSize;
+
+    private long lowestSym;
+    private long btree;
+    private long sparseIndex;
+    private long blockLength;
+    private long data;
+
+    private long[] base64;
+    private int[] symlen;
+
+    /**
+     * Reads the sizes and the symbol tree
+     *
+     * @param file     Table file
+     * @param position Offset of the sizes
+     * @return Offset after the sizes
+     */
+
+    long setSizes(TableFile file, long position) {
+        flags = file.u8(position++);
+        if ((flags & FLAG_SINGLE_VALUE) != 0) {
+            // The single value is stored as the minimal symbol length
+            minSymLen = file.u8(position++);
+            return position;
+        }
+
+        int groups = 0;
+        while (groupLen[groups] != 0) groups++;
+        long tableSize = groupIdx[groups];
+
+        sizeofBlock = 1L << file.u8(position++);
+        span = 1L << file.u8(position++);
+        sparseIndexSize = (tableSize + span - 1) / span;
+        int padding = file.u8(position++);
+        numBlocks = file.u32le(position);
+        position += 4;
+        blockLengthSize = numBlocks + padding;
+        int maxSymLen = file.u8(position++);
+        minSymLen = file.u8(position++);
+        lowestSym = position;
+
+        base64 = new long[maxSymLen - minSymLen + 1];
+        for (int i = base64.length - 2; i >= 0; i--) {
+            base64[i] = (base64[i + 1] + file.u16le(lowestSym + 2L * i) - file.u16le(lowestSym + 2L * (i + 1))) / 2;
+        }
+        for (int i = 0; i < base64.length; i++) base64[i] <<= 64 - i - minSymLen;
+        position += 2L * base64.length;
+
+        symlen = new int[file.u16le(position)];
+        position += 2;
+        btree = position;
+
+        boolean[] visited = new boolean[symlen.length];
+        for (int symbol = 0; symbol < symlen.length; symbol++) {
+            if (!visited[symbol]) symlen[symbol] = setSymlen(file, symbol, visited);
+        }
+        return position + 3L * symlen.length + (symlen.length & 1);
+    }
+
+    private int setSymlen(TableFile file, int symbol, boolean[] visited) {
+        visited[symbol] = true;
+        int right = right(file, symbol);
+        if (right == 0xFFF) return 0;
+        int left = left(file, symbol);
+        if (!visited[left]) symlen[left] = setSymlen(file, left, visited);
+        if (!visited[right]) symlen[right] = setSymlen(file, right, visited);
+        return symlen[left] + symlen[right] + 1;
+    }
+
+    long setSparseIndex(long position) {
+        sparseIndex = position;
+        return position + sparseIndexSize * SPARSE_ENTRY_SIZE;
+    }
+
+    long setBlockLength(long position) {
+        blockLength = position;
+        return position + blockLengthSize * 2;
+    }
+
+    long setData(long position) {
+        data = (position + 0x3F) & ~0x3FL;
+        return data + numBlocks * sizeofBlock;
+    }
+
+    /**
+     * Decompresses the value at an index
+     *
+     * @param file Table file
+     * @param idx  Position index
+     * @return Stored value
+     */
+
+    int decompress(TableFile file, long idx) {
+        if ((flags & FLAG_SINGLE_VALUE) != 0) return minSymLen;
+
+        // The sparse index points close to the block and offset of idx, walk the block lengths from there
+        long entry = sparseIndex + (idx / span) * SPARSE_ENTRY_SIZE;
+        long block = file.u32le(entry);
+        long offset = file.u16le(entry + 4);
+        offset += idx % span - span / 2;
+        while (offset < 0) offset += file.u16le(blockLength + 2 * --block) + 1;
+        while (offset > file.u16le(blockLength + 2 * block)) offset -= file.u16le(blockLength + 2 * block++) + 1;
+
+        long pointer = data + block * sizeofBlock;
+        long buffer = file.u64be(pointer);
+        pointer += 8;
+        int bufferSize = 64;
+        int symbol;
+        while (true) {
+            int length = 0;
+            while (Long.compareUnsigned(buffer, base64[length]) < 0) length++;
+            symbol = (int) ((buffer - base64[length]) >>> (64 - length - minSymLen));
+            symbol += file.u16le(lowestSym + 2L * length);
+            if (offset < symlen[symbol] + 1) break;
+            offset -= symlen[symbol] + 1;
+            length += minSymLen;
+            buffer <<= length;
+            bufferSize -= length;
+            if (bufferSize <= 32) {
+                bufferSize += 32;
+                buffer |= file.u32be(pointer) << (64 - bufferSize);
+                pointer += 4;
+            }
+        }
+
+        // Expand the pair symbol until the requested value is reached
+        while (symlen[symbol] != 0) {
+            int left = left(file, symbol);
+            if (offset < symlen[left] + 1) {
+                symbol = left;
+            } else {
+                offset -= symlen[left] + 1;
+                symbol = right(file, symbol);
+            }
+        }
+        return left(file, symbol);
+    }
+
+    private int left(TableFile file, int symbol) {
+        long position = btree + 3L * symbol;
+        return (file.u8(position + 1) & 0xF) << 8 | file.u8(position);
+    }
+
+    private int right(TableFile file, int symbol) {
+        long position = btree + 3L * symbol;
+        return file.u8(position + 2) << 4 | file.u8(position + 1) >> 4;
+    }
+
+}
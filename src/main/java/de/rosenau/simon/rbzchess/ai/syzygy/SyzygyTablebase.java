@@ -0,0 +1,389 @@
+package de.rosenau.simon.rbzchess.ai.syzygy;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Probes Syzygy endgame tablebases (.rtbw for win/draw/loss, .rtbz for distance to zeroing). Table files are found
+ * by name in the configured directories and memory-mapped in segments on first use. If no table files are found
+ * the tablebase is disabled and every probe fails, so callers can always keep an instance around.
+ */
+
+public class SyzygyTablebase implements Closeable {
+
+    // Results of probeWdl, relative to the side to move. Cursed wins and blessed losses are draws by the fifty move rule
+    public static final int LOSS = -2;
+    public static final int BLESSED_LOSS = -1;
+    public static final int DRAW = 0;
+    public static final int CURSED_WIN = 1;
+    public static final int WIN = 2;
+
+    public static final int FAILED = Integer.MIN_VALUE;
+
+    public static final long DEFAULT_MAX_MAPPED_BYTES = 1L << 30;
+
+    private static final int ZEROING_BEST_MOVE = 3;
+    // Rank of a win or loss at the root, above any distance to zeroing plus half move clock as in Stockfish
+    private static final int MAX_DTZ = 1 << 18;
+
+    private final Map<String, Entry> tables = new HashMap<>();
+    private final List<TableFile> files = new ArrayList<>();
+    private final TableFile.Cache cache;
+
+    // Largest number of pieces of a found table
+    @Getter
+    private final int maxPieces;
+    // Positions with more pieces are not probed
+    @Getter
+    private final int probeLimit;
+
+    private SyzygyTablebase() {
+        this.cache = new TableFile.Cache(DEFAULT_MAX_MAPPED_BYTES);
+        this.maxPieces = 0;
+        this.probeLimit = 0;
+    }
+
+    private SyzygyTablebase(List<Path> directories, int probeLimit, long maxMappedBytes) throws IOException {
+        this.cache = new TableFile.Cache(maxMappedBytes);
+        int maxPieces = 0;
+        for (Path directory : directories) {
+            if (!Files.isDirectory(directory)) continue;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.rtbw")) {
+                for (Path wdlPath : stream) {
+                    String name = wdlPath.getFileName().toString();
+                    String code = name.substring(0, name.length() - ".rtbw".length());
+                    if (!code.matches("K[QRBNP]*vK[QRBNP]*") || tables.containsKey(code)) continue;
+
+                    TableFile wdlFile = new TableFile(wdlPath, cache);
+                    files.add(wdlFile);
+                    Table dtz = null;
+                    Path dtzPath = wdlPath.resolveSibling(code + ".rtbz");
+                    if (Files.isRegularFile(dtzPath)) {
+                        TableFile dtzFile = new TableFile(dtzPath, cache);
+                        files.add(dtzFile);
+                        dtz = new Table(dtzFile, code, true);
+                    }
+
+                    Entry entry = new Entry(new Table(wdlFile, code, false), dtz);
+                    tables.put(entry.wdl.key, entry);
+                    tables.put(entry.wdl.key2, entry);
+                    maxPieces = Math.max(maxPieces, entry.wdl.pieceCount);
+                }
+            }
+        }
+        this.maxPieces = maxPieces;
+        this.probeLimit = Math.min(probeLimit, maxPieces);
+    }
+
+    /**
+     * Opens the tablebase in the given directories
+     *
+     * @param paths          Directories separated by the platform path separator, may be null or empty
+     * @param probeLimit     Maximal number of pieces to probe, including kings
+     * @param maxMappedBytes Limit of mapped table data before least recently used segments are unmapped
+     * @return SyzygyTablebase, disabled if no tables were found
+     * @throws IOException if a directory can not be read
+     */
+
+    public static SyzygyTablebase open(String paths, int probeLimit, long maxMappedBytes) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        if (paths != null) {
+            for (String path : paths.split(File.pathSeparator)) {
+                if (!path.trim().isEmpty()) directories.add(Paths.get(path.trim()));
+            }
+        }
+        return new SyzygyTablebase(directories, probeLimit, maxMappedBytes);
+    }
+
+    public static SyzygyTablebase open(String paths) throws IOException {
+        return open(paths, Integer.MAX_VALUE, DEFAULT_MAX_MAPPED_BYTES);
+    }
+
+    /**
+     * Creates a tablebase without tables, every probe fails
+     *
+     * @return SyzygyTablebase
+     */
+
+    public static SyzygyTablebase disabled() {
+        return new SyzygyTablebase();
+    }
+
+    public boolean isEnabled() {
+        return probeLimit > 0;
+    }
+
+    public int getMappedSegments() {
+        return cache.getMappedSegments();
+    }
+
+    /**
+     * Checks whether the position is small enough to be probed. Positions with castling rights are not stored.
+     *
+     * @param board Position
+     * @return true if probing may succeed
+     */
+
+    public boolean canProbe(ChessBoard board) {
+        if (!isEnabled() || board.hasCastlingRights()) return false;
+        int count = 0;
+        for (int i = 0; i < 64; i++) {
+            if (board.getPiece(i) != 0 && ++count > probeLimit) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Probes the win/draw/loss tables. Only exact if the last move was a capture or pawn move,
+     * as the tables do not know how far the fifty move rule has progressed.
+     *
+     * @param board Position
+     * @return LOSS, BLESSED_LOSS, DRAW, CURSED_WIN or WIN relative to the side to move, or FAILED
+     */
+
+    public int probeWdl(ChessBoard board) {
+        if (!canProbe(board)) return FAILED;
+        int[] state = new int[1];
+        int wdl = search(board, false, state);
+        return state[0] == Table.FAIL ? FAILED : wdl;
+    }
+
+    /**
+     * Probes the distance to zeroing tables
+     *
+     * @param board Position
+     * @return Plies to the next capture or pawn move in a won (positive) or lost (negative) position, 0 for draws
+     * or FAILED. Values beyond 100 are cursed wins or blessed losses.
+     */
+
+    public int probeDtz(ChessBoard board) {
+        if (!canProbe(board)) return FAILED;
+        int[] state = new int[1];
+        int dtz = probeDtz(board, state);
+        return state[0] == Table.FAIL ? FAILED : dtz;
+    }
+
+    /**
+     * Ranks the moves of a root position by their tablebase result and keeps only the best ones,
+     * winning moves ordered by ascending distance to zeroing so playing the first one makes progress
+     *
+     * @param board Root position
+     * @param moves Legal moves of the position, modified only if probing succeeds
+     * @return Result of the root position or FAILED
+     */
+
+    public int rankRootMoves(ChessBoard board, List<ChessMove> moves) {
+        if (!canProbe(board) || moves.isEmpty()) return FAILED;
+        int[] state = new int[1];
+        int clock = board.getHalfmoveClock();
+        int[] ranks = new int[moves.size()];
+        int[] distances = new int[moves.size()];
+
+        for (int i = 0; i < moves.size(); i++) {
+            ChessBoard child = board.performMove(moves.get(i));
+            int dtz;
+            if (child.getHalfmoveClock() == 0) {
+                dtz = dtzBeforeZeroing(-search(child, false, state));
+            } else {
+                dtz = -probeDtz(child, state);
+                dtz = dtz > 0 ? dtz + 1 : dtz < 0 ? dtz - 1 : dtz;
+            }
+            if (state[0] == Table.FAIL) return FAILED;
+            // A mating move always has a distance of 1
+            if (dtz == 2 && child.isCheck() && child.getPossibleMoves().isEmpty()) dtz = 1;
+
+            // Wins inside the fifty move rule rank equally, losses rank equally unless the rule saves the position
+            ranks[i] = dtz > 0 ? (dtz + clock <= 99 ? MAX_DTZ : MAX_DTZ - (dtz + clock))
+                    : dtz < 0 ? (-dtz * 2 + clock < 100 ? -MAX_DTZ : -MAX_DTZ + (-dtz + clock))
+                    : 0;
+            distances[i] = dtz;
+        }
+
+        int best = Integer.MIN_VALUE;
+        for (int rank : ranks) best = Math.max(best, rank);
+
+        List<ChessMove> kept = new ArrayList<>();
+        List<Integer> keptDistances = new ArrayList<>();
+        for (int i = 0; i < moves.size(); i++) {
+            if (ranks[i] != best) continue;
+            // Insert ordered by distance, so the quickest win comes first
+            int index = 0;
+            while (index < kept.size() && keptDistances.get(index) <= distances[i]) index++;
+            kept.add(index, moves.get(i));
+            keptDistances.add(index, distances[i]);
+        }
+        moves.clear();
+        moves.addAll(kept);
+
+        if (best == MAX_DTZ) return WIN;
+        if (best > 0) return CURSED_WIN;
+        if (best == 0) return DRAW;
+        return best == -MAX_DTZ ? LOSS : BLESSED_LOSS;
+    }
+
+    private int search(ChessBoard board, boolean checkZeroingMoves, int[] state) {
+        int bestValue = LOSS;
+        Set<ChessMove> moves = board.getPossibleMoves();
+        int moveCount = 0;
+
+        // Captures (and pawn moves) change the table, so they are resolved by searching instead of probing
+        for (ChessMove move : moves) {
+            if (!isCapture(board, move) && (!checkZeroingMoves || !isPawnMove(board, move))) continue;
+            moveCount++;
+
+            int value = -search(board.performMove(move), false, state);
+            if (state[0] == Table.FAIL) return DRAW;
+            if (value > bestValue) {
+                bestValue = value;
+                if (value >= WIN) {
+                    state[0] = ZEROING_BEST_MOVE;
+                    return value;
+                }
+            }
+        }
+
+        // If every legal move was searched the stored value is not needed and may be wrong, e.g. with en passent
+        boolean noMoreMoves = moveCount != 0 && moveCount == moves.size();
+        int value;
+        if (noMoreMoves) {
+            value = bestValue;
+        } else {
+            value = probeTable(board, false, DRAW, state);
+            if (state[0] == Table.FAIL) return DRAW;
+        }
+
+        if (bestValue >= value) {
+            state[0] = bestValue > DRAW || noMoreMoves ? ZEROING_BEST_MOVE : Table.OK;
+            return bestValue;
+        }
+        state[0] = Table.OK;
+        return value;
+    }
+
+    private int probeDtz(ChessBoard board, int[] state) {
+        state[0] = Table.OK;
+        int wdl = search(board, true, state);
+        if (state[0] == Table.FAIL || wdl == DRAW) return 0;
+        if (state[0] == ZEROING_BEST_MOVE) return dtzBeforeZeroing(wdl);
+
+        int dtz = probeTable(board, true, wdl, state);
+        if (state[0] == Table.FAIL) return 0;
+        if (state[0] != Table.CHANGE_STM) {
+            return (dtz + (wdl == BLESSED_LOSS || wdl == CURSED_WIN ? 100 : 0)) * Integer.signum(wdl);
+        }
+
+        // The table only stores the other side to move, search one ply for the best distance
+        int minDtz = 0xFFFF;
+        for (ChessMove move : board.getPossibleMoves()) {
+            boolean zeroing = isCapture(board, move) || isPawnMove(board, move);
+            ChessBoard child = board.performMove(move);
+            dtz = zeroing ? -dtzBeforeZeroing(search(child, false, state)) : -probeDtz(child, state);
+
+            if (dtz == 1 && child.isCheck() && child.getPossibleMoves().isEmpty()) minDtz = 1;
+            if (!zeroing) dtz += Integer.signum(dtz);
+            if (dtz < minDtz && Integer.signum(dtz) == Integer.signum(wdl)) minDtz = dtz;
+            if (state[0] == Table.FAIL) return 0;
+        }
+        return minDtz == 0xFFFF ? -1 : minDtz;
+    }
+
+    private int probeTable(ChessBoard board, boolean dtz, int wdl, int[] state) {
+        int[] pieceOn = new int[64];
+        StringBuilder white = new StringBuilder("K");
+        StringBuilder black = new StringBuilder("K");
+        int count = 0;
+        for (int i = 0; i < 64; i++) {
+            char c = board.getPiece(i);
+            if (c == 0) continue;
+            count++;
+            // Tables number the squares from a1
+            pieceOn[i ^ 56] = pieceCode(c);
+        }
+        if (count == 2) return DRAW;
+        for (char c : "QRBNP".toCharArray()) {
+            for (int i = 0; i < 64; i++) {
+                if (board.getPiece(i) == c) white.append(c);
+                else if (board.getPiece(i) == c + 32) black.append(c);
+            }
+        }
+
+        String material = white + "v" + black;
+        Entry entry = tables.get(material);
+        Table table = entry == null ? null : dtz ? entry.dtz : entry.wdl;
+        if (table == null) {
+            state[0] = Table.FAIL;
+            return 0;
+        }
+        try {
+            table.init();
+        } catch (IOException e) {
+            state[0] = Table.FAIL;
+            return 0;
+        }
+        return table.probe(pieceOn, material, board.isWhiteToMove(), wdl, state);
+    }
+
+    private static int dtzBeforeZeroing(int wdl) {
+        switch (wdl) {
+            case WIN:
+                return 1;
+            case CURSED_WIN:
+                return 101;
+            case BLESSED_LOSS:
+                return -101;
+            case LOSS:
+                return -1;
+            default:
+                return 0;
+        }
+    }
+
+    private static int pieceCode(char c) {
+        int code = " PNBRQK".indexOf(Character.toUpperCase(c));
+        return c > 96 ? code + 8 : code;
+    }
+
+    private static boolean isPawnMove(ChessBoard board, ChessMove move) {
+        char piece = board.getPiece(move.getFrom());
+        return piece == 'P' || piece == 'p';
+    }
+
+    private static boolean isCapture(ChessBoard board, ChessMove move) {
+        // Diagonal pawn moves to an empty square are en passent
+        return board.getPiece(move.getTo()) != 0 || (isPawnMove(board, move) && move.getFrom() % 8 != move.getTo() % 8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (TableFile file : files) file.close();
+    }
+
+    private static final class Entry {
+
+        private final Table wdl;
+        private final Table dtz;
+
+        private Entry(Table wdl, Table dtz) {
+            this.wdl = wdl;
+            this.dtz = dtz;
+        }
+
+    }
+
+}
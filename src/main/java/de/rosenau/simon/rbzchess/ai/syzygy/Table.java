@@ -0,0 +1,392 @@
+package de.rosenau.simon.rbzchess.ai.syzygy;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static de.rosenau.simon.rbzchess.ai.syzygy.Encoding.BINOMIAL;
+import static de.rosenau.simon.rbzchess.ai.syzygy.Encoding.LEAD_PAWNS_SIZE;
+import static de.rosenau.simon.rbzchess.ai.syzygy.Encoding.LEAD_PAWN_IDX;
+import static de.rosenau.simon.rbzchess.ai.syzygy.Encoding.MAP_A1D1D4;
+import static de.rosenau.simon.rbzchess.ai.syzygy.Encoding.MAP_B1H1H7;
+import static de.rosenau.simon.rbzchess.ai.syzygy.Encoding.MAP_KK;
+import static de.rosenau.simon.rbzchess.ai.syzygy.Encoding.MAP_PAWNS;
+import static de.rosenau.simon.rbzchess.ai.syzygy.Encoding.edgeDistance;
+import static de.rosenau.simon.rbzchess.ai.syzygy.Encoding.file;
+import static de.rosenau.simon.rbzchess.ai.syzygy.Encoding.offA1H8;
+import static de.rosenau.simon.rbzchess.ai.syzygy.Encoding.rank;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * A WDL (.rtbw) or DTZ (.rtbz) table of one material configuration, e.g. KRPvKR. The file is parsed on first use.
+ * Pieces are coded like in the files: 1-6 white pawn to king, 9-14 black pawn to king.
+ */
+
+final class Table {
+
+    static final int WDL_MAGIC = 0x5D23E871;
+    static final int DTZ_MAGIC = 0xA50C66D7;
+
+    // Probe results besides the value
+    static final int OK = 0;
+    static final int FAIL = 1;
+    static final int CHANGE_STM = 2;
+
+    private static final int[] WDL_MAP = {1, 3, 0, 2, 0};
+
+    private final boolean dtz;
+    private final TableFile file;
+
+    // Material of the table with white as the stronger side and mirrored with black as the stronger side
+    final String key;
+    final String key2;
+
+    final int pieceCount;
+    final boolean hasPawns;
+    private final boolean hasUniquePieces;
+    private final int[] pawnCount = new int[2];
+
+    // [side to move][file of leading pawn]
+    private final PairsData[][] items;
+    private long map;
+
+    private volatile boolean ready;
+
+    Table(TableFile file, String code, boolean dtz) {
+        this.file = file;
+        this.dtz = dtz;
+        String[] sides = code.split("v");
+        this.key = code;
+        this.key2 = sides[1] + "v" + sides[0];
+        this.pieceCount = code.length() - 1;
+        this.hasPawns = code.indexOf('P') >= 0;
+
+        boolean unique = false;
+        for (String side : sides) {
+            for (char c : "QRBNP".toCharArray()) {
+                if (side.indexOf(c) >= 0 && side.indexOf(c) == side.lastIndexOf(c)) unique = true;
+            }
+        }
+        this.hasUniquePieces = unique;
+
+        // The leading color is the one with less pawns, but at least one
+        int whitePawns = count(sides[0], 'P');
+        int blackPawns = count(sides[1], 'P');
+        boolean whiteLeads = blackPawns == 0 || (whitePawns > 0 && blackPawns >= whitePawns);
+        pawnCount[0] = whiteLeads ? whitePawns : blackPawns;
+        pawnCount[1] = whiteLeads ? blackPawns : whitePawns;
+
+        this.items = new PairsData[dtz ? 1 : 2][hasPawns ? 4 : 1];
+        for (PairsData[] side : items) {
+            for (int i = 0; i < side.length; i++) side[i] = new PairsData();
+        }
+    }
+
+    private static int count(String side, char piece) {
+        int count = 0;
+        for (char c : side.toCharArray()) if (c == piece) count++;
+        return count;
+    }
+
+    private PairsData get(int stm, int file) {
+        return items[stm % items.length][hasPawns ? file : 0];
+    }
+
+    /**
+     * Parses the file header on first use
+     *
+     * @throws IOException if the file is no valid table of this material
+     */
+
+    void init() throws IOException {
+        if (ready) return;
+        synchronized (this) {
+            if (ready) return;
+            if (file.getSize() < 5 || (int) file.u32le(0) != (dtz ? DTZ_MAGIC : WDL_MAGIC)) {
+                throw new IOException("Invalid Syzygy table: " + file.getPath());
+            }
+            int header = file.u8(4);
+            if (((header & 2) != 0) != hasPawns) {
+                throw new IOException("Syzygy table does not match its name: " + file.getPath());
+            }
+            set(5);
+            ready = true;
+        }
+    }
+
+    private void set(long position) {
+        int sides = !dtz && !key.equals(key2) ? 2 : 1;
+        int maxFile = hasPawns ? 3 : 0;
+        boolean pp = hasPawns && pawnCount[1] != 0;
+
+        for (int f = 0; f <= maxFile; f++) {
+            int first = file.u8(position);
+            int second = pp ? file.u8(position + 1) : 0xFF;
+            int[][] order = {{first & 0xF, second & 0xF}, {first >> 4, second >> 4}};
+            position += pp ? 2 : 1;
+
+            for (int k = 0; k < pieceCount; k++, position++) {
+                int b = file.u8(position);
+                for (int i = 0; i < sides; i++) get(i, f).pieces[k] = i != 0 ? b >> 4 : b & 0xF;
+            }
+            for (int i = 0; i < sides; i++) setGroups(get(i, f), order[i], f);
+        }
+
+        position += position & 1;
+
+        for (int f = 0; f <= maxFile; f++) {
+            for (int i = 0; i < sides; i++) position = get(i, f).setSizes(file, position);
+        }
+
+        if (dtz) position = setDtzMap(position, maxFile);
+
+        for (int f = 0; f <= maxFile; f++) {
+            for (int i = 0; i < sides; i++) position = get(i, f).setSparseIndex(position);
+        }
+        for (int f = 0; f <= maxFile; f++) {
+            for (int i = 0; i < sides; i++) position = get(i, f).setBlockLength(position);
+        }
+        for (int f = 0; f <= maxFile; f++) {
+            for (int i = 0; i < sides; i++) position = get(i, f).setData(position);
+        }
+    }
+
+    private void setGroups(PairsData d, int[] order, int f) {
+        int n = 0;
+        int firstLen = hasPawns ? 0 : hasUniquePieces ? 3 : 2;
+        d.groupLen[n] = 1;
+
+        // Pieces of the same kind form a group, the leading group holds up to three unique pieces
+        for (int i = 1; i < pieceCount; i++) {
+            if (--firstLen > 0 || d.pieces[i] == d.pieces[i - 1]) d.groupLen[n]++;
+            else d.groupLen[++n] = 1;
+        }
+        d.groupLen[++n] = 0;
+
+        // The groups are combined in a per-table order, order[0] is the leading group, order[1] the remaining pawns
+        boolean pp = hasPawns && pawnCount[1] != 0;
+        int next = pp ? 2 : 1;
+        int freeSquares = 64 - d.groupLen[0] - (pp ? d.groupLen[1] : 0);
+        long idx = 1;
+
+        for (int k = 0; next < n || k == order[0] || k == order[1]; k++) {
+            if (k == order[0]) {
+                d.groupIdx[0] = idx;
+                idx *= hasPawns ? LEAD_PAWNS_SIZE[d.groupLen[0]][f] : hasUniquePieces ? 31332 : 462;
+            } else if (k == order[1]) {
+                d.groupIdx[1] = idx;
+                idx *= BINOMIAL[d.groupLen[1]][48 - d.groupLen[0]];
+            } else {
+                d.groupIdx[next] = idx;
+                idx *= BINOMIAL[d.groupLen[next]][freeSquares];
+                freeSquares -= d.groupLen[next++];
+            }
+        }
+        d.groupIdx[n] = idx;
+    }
+
+    private long setDtzMap(long position, int maxFile) {
+        map = position;
+        for (int f = 0; f <= maxFile; f++) {
+            PairsData d = get(0, f);
+            if ((d.flags & PairsData.FLAG_MAPPED) == 0) continue;
+            if ((d.flags & PairsData.FLAG_WIDE) != 0) {
+                position += position & 1;
+                for (int i = 0; i < 4; i++) {
+                    d.mapIdx[i] = (int) ((position - map) / 2 + 1);
+                    position += 2L * file.u16le(position) + 2;
+                }
+            } else {
+                for (int i = 0; i < 4; i++) {
+                    d.mapIdx[i] = (int) (position - map + 1);
+                    position += file.u8(position) + 1;
+                }
+            }
+        }
+        return position + (position & 1);
+    }
+
+    /**
+     * Looks up a position
+     *
+     * @param pieceOn     Piece codes indexed by square, 0 = a1
+     * @param material    Material of the position, white first
+     * @param whiteToMove Side to move
+     * @param wdl         WDL score of the position, only used for DTZ tables
+     * @param state       Receives OK, FAIL or CHANGE_STM
+     * @return WDL score or DTZ in plies
+     */
+
+    int probe(int[] pieceOn, String material, boolean whiteToMove, int wdl, int[] state) {
+        int[] squares = new int[7];
+        int[] pieces = new int[7];
+        int size = 0;
+        int leadPawnsCount = 0;
+        long leadPawns = 0;
+        int tbFile = 0;
+
+        // Tables of equal material only store white to move, tables are stored with white as the stronger side
+        boolean symmetricBlackToMove = key.equals(key2) && !whiteToMove;
+        boolean blackStronger = !material.equals(key);
+        boolean flip = symmetricBlackToMove || blackStronger;
+        int flipColor = flip ? 8 : 0;
+        int flipSquares = flip ? 56 : 0;
+        int stm = (flip ? 1 : 0) ^ (whiteToMove ? 0 : 1);
+
+        if (hasPawns) {
+            int pawn = get(0, 0).pieces[0] ^ flipColor;
+            for (int s = 0; s < 64; s++) {
+                if (pieceOn[s] != pawn) continue;
+                squares[size++] = s ^ flipSquares;
+                leadPawns |= 1L << s;
+            }
+            leadPawnsCount = size;
+            // The leading pawn is the one with the highest pawn map value
+            int max = 0;
+            for (int i = 1; i < leadPawnsCount; i++) {
+                if (MAP_PAWNS[squares[i]] > MAP_PAWNS[squares[max]]) max = i;
+            }
+            swap(squares, 0, max);
+            tbFile = edgeDistance(file(squares[0]));
+        }
+
+        // DTZ tables only store one side to move
+        if (dtz) {
+            int flags = get(stm, tbFile).flags;
+            if ((flags & PairsData.FLAG_STM) != stm && !(key.equals(key2) && !hasPawns)) {
+                state[0] = CHANGE_STM;
+                return 0;
+            }
+        }
+
+        for (int s = 0; s < 64; s++) {
+            if (pieceOn[s] == 0 || (leadPawns & 1L << s) != 0) continue;
+            squares[size] = s ^ flipSquares;
+            pieces[size++] = pieceOn[s] ^ flipColor;
+        }
+
+        PairsData d = get(stm, tbFile);
+
+        // Bring the pieces into the order of the table
+        for (int i = leadPawnsCount; i < size - 1; i++) {
+            for (int j = i + 1; j < size; j++) {
+                if (d.pieces[i] == pieces[j]) {
+                    swap(pieces, i, j);
+                    swap(squares, i, j);
+                    break;
+                }
+            }
+        }
+
+        // Mirror so that the leading piece is on the files a-d
+        if (file(squares[0]) > 3) {
+            for (int i = 0; i < size; i++) squares[i] ^= 7;
+        }
+
+        long idx;
+        if (hasPawns) {
+            idx = LEAD_PAWN_IDX[leadPawnsCount][squares[0]];
+            sortByPawnMap(squares, 1, leadPawnsCount);
+            for (int i = 1; i < leadPawnsCount; i++) idx += BINOMIAL[i][MAP_PAWNS[squares[i]]];
+        } else {
+            // Without pawns also mirror the leading piece to the ranks 1-4 and below the a1-h8 diagonal
+            if (rank(squares[0]) > 3) {
+                for (int i = 0; i < size; i++) squares[i] ^= 56;
+            }
+            for (int i = 0; i < d.groupLen[0]; i++) {
+                if (offA1H8(squares[i]) == 0) continue;
+                if (offA1H8(squares[i]) > 0) {
+                    for (int j = i; j < size; j++) squares[j] = ((squares[j] >> 3) | (squares[j] << 3)) & 63;
+                }
+                break;
+            }
+
+            if (hasUniquePieces) {
+                int adjust1 = squares[1] > squares[0] ? 1 : 0;
+                int adjust2 = (squares[2] > squares[0] ? 1 : 0) + (squares[2] > squares[1] ? 1 : 0);
+
+                if (offA1H8(squares[0]) != 0) {
+                    idx = (MAP_A1D1D4[squares[0]] * 63L + (squares[1] - adjust1)) * 62 + squares[2] - adjust2;
+                } else if (offA1H8(squares[1]) != 0) {
+                    idx = (6 * 63L + rank(squares[0]) * 28 + MAP_B1H1H7[squares[1]]) * 62 + squares[2] - adjust2;
+                } else if (offA1H8(squares[2]) != 0) {
+                    idx = 6 * 63 * 62 + 4 * 28 * 62
+                            + rank(squares[0]) * 7 * 28
+                            + (rank(squares[1]) - adjust1) * 28
+                            + MAP_B1H1H7[squares[2]];
+                } else {
+                    idx = 6 * 63 * 62 + 4 * 28 * 62 + 4 * 7 * 28
+                            + rank(squares[0]) * 7 * 6
+                            + (rank(squares[1]) - adjust1) * 6
+                            + (rank(squares[2]) - adjust2);
+                }
+            } else {
+                idx = MAP_KK[MAP_A1D1D4[squares[0]]][squares[1]];
+            }
+        }
+
+        // Encode the remaining groups, each in ascending square order
+        idx *= d.groupIdx[0];
+        int group = d.groupLen[0];
+        boolean remainingPawns = hasPawns && pawnCount[1] != 0;
+        int next = 0;
+        while (d.groupLen[++next] != 0) {
+            int length = d.groupLen[next];
+            Arrays.sort(squares, group, group + length);
+            long n = 0;
+            for (int i = 0; i < length; i++) {
+                int adjust = 0;
+                for (int j = 0; j < group; j++) if (squares[group + i] > squares[j]) adjust++;
+                n += BINOMIAL[i + 1][squares[group + i] - adjust - (remainingPawns ? 8 : 0)];
+            }
+            remainingPawns = false;
+            idx += n * d.groupIdx[next];
+            group += length;
+        }
+
+        state[0] = OK;
+        return mapScore(tbFile, d.decompress(file, idx), wdl);
+    }
+
+    private int mapScore(int tbFile, int value, int wdl) {
+        if (!dtz) return value - 2;
+
+        PairsData d = get(0, tbFile);
+        if ((d.flags & PairsData.FLAG_MAPPED) != 0) {
+            if ((d.flags & PairsData.FLAG_WIDE) != 0) {
+                value = file.u16le(map + 2L * (d.mapIdx[WDL_MAP[wdl + 2]] + value));
+            } else {
+                value = file.u8(map + d.mapIdx[WDL_MAP[wdl + 2]] + value);
+            }
+        }
+
+        // Stored in moves unless flagged as plies, cursed results are always stored in moves
+        if ((wdl == SyzygyTablebase.WIN && (d.flags & PairsData.FLAG_WIN_PLIES) == 0)
+                || (wdl == SyzygyTablebase.LOSS && (d.flags & PairsData.FLAG_LOSS_PLIES) == 0)
+                || wdl == SyzygyTablebase.CURSED_WIN
+                || wdl == SyzygyTablebase.BLESSED_LOSS) {
+            value *= 2;
+        }
+        return value + 1;
+    }
+
+    // Insertion sort keeps equal elements stable, the ranges are at most 5 elements long
+    private static void sortByPawnMap(int[] squares, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            int square = squares[i];
+            int j = i - 1;
+            while (j >= from && MAP_PAWNS[squares[j]] > MAP_PAWNS[square]) {
+                squares[j + 1] = squares[j];
+                j--;
+            }
+            squares[j + 1] = square;
+        }
+    }
+
+    private static void swap(int[] array, int i, int j) {
+        int value = array[i];
+        array[i] = array[j];
+        array[j] = value;
+    }
+
+}
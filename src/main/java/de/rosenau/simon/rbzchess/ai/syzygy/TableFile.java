@@ -0,0 +1,147 @@
+package de.rosenau.simon.rbzchess.ai.syzygy;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * A table file mapped in segments on first access. Segments of all files share a {@link Cache} which unmaps the
+ * least recently used segment once its limit is reached. Reads take absolute file offsets and are thread-safe.
+ */
+
+final class TableFile implements Closeable {
+
+    static final int SEGMENT_BITS = 24;
+    static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    @Getter
+    private final Path path;
+    private final FileChannel channel;
+    @Getter
+    private final long size;
+    private final Cache cache;
+
+    private final AtomicReferenceArray<MappedByteBuffer> segments;
+    // Cache clock of the last access per segment, written without synchronization as it is only a hint
+    private final long[] lastUsed;
+
+    TableFile(Path path, Cache cache) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.cache = cache;
+        int count = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+        this.segments = new AtomicReferenceArray<>(count);
+        this.lastUsed = new long[count];
+    }
+
+    int u8(long position) {
+        return segment(position).get((int) (position & SEGMENT_MASK)) & 0xFF;
+    }
+
+    int u16le(long position) {
+        int offset = (int) (position & SEGMENT_MASK);
+        if (offset + 2 > SEGMENT_SIZE) return u8(position) | u8(position + 1) << 8;
+        return Short.reverseBytes(segment(position).getShort(offset)) & 0xFFFF;
+    }
+
+    long u32le(long position) {
+        int offset = (int) (position & SEGMENT_MASK);
+        if (offset + 4 > SEGMENT_SIZE) return u16le(position) | (long) u16le(position + 2) << 16;
+        return Integer.reverseBytes(segment(position).getInt(offset)) & 0xFFFFFFFFL;
+    }
+
+    long u32be(long position) {
+        int offset = (int) (position & SEGMENT_MASK);
+        if (offset + 4 > SEGMENT_SIZE) {
+            return (long) u8(position) << 24 | u8(position + 1) << 16 | u8(position + 2) << 8 | u8(position + 3);
+        }
+        return segment(position).getInt(offset) & 0xFFFFFFFFL;
+    }
+
+    long u64be(long position) {
+        int offset = (int) (position & SEGMENT_MASK);
+        if (offset + 8 > SEGMENT_SIZE) return u32be(position) << 32 | u32be(position + 4);
+        return segment(position).getLong(offset);
+    }
+
+    private MappedByteBuffer segment(long position) {
+        int index = (int) (position >>> SEGMENT_BITS);
+        MappedByteBuffer segment = segments.get(index);
+        if (segment == null) segment = cache.map(this, index);
+        lastUsed[index] = cache.clock;
+        return segment;
+    }
+
+    private MappedByteBuffer map(int index) {
+        long start = (long) index << SEGMENT_BITS;
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Mapping " + path + " failed", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Bounds the amount of mapped table data. Java can not unmap explicitly, evicted segments are released once
+     * no probe references them anymore and the garbage collector has run.
+     */
+
+    static final class Cache {
+
+        private final int maxSegments;
+        private final List<TableFile> files = new ArrayList<>();
+        private final List<Integer> indices = new ArrayList<>();
+
+        // Advanced on every mapping, segments used since then share the same stamp
+        private volatile long clock;
+
+        Cache(long maxMappedBytes) {
+            this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxMappedBytes >>> SEGMENT_BITS));
+        }
+
+        synchronized MappedByteBuffer map(TableFile file, int index) {
+            MappedByteBuffer segment = file.segments.get(index);
+            if (segment != null) return segment;
+
+            if (files.size() >= maxSegments) evict();
+            segment = file.map(index);
+            file.segments.set(index, segment);
+            files.add(file);
+            indices.add(index);
+            clock++;
+            return segment;
+        }
+
+        synchronized int getMappedSegments() {
+            return files.size();
+        }
+
+        private void evict() {
+            int oldest = 0;
+            for (int i = 1; i < files.size(); i++) {
+                if (files.get(i).lastUsed[indices.get(i)] < files.get(oldest).lastUsed[indices.get(oldest)]) oldest = i;
+            }
+            files.remove(oldest).segments.set(indices.remove(oldest), null);
+        }
+
+    }
+
+}
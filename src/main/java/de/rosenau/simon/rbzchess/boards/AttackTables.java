@@ -0,0 +1,126 @@
+package de.rosenau.simon.rbzchess.boards;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Attack and ray tables built once when the class is initialised. Squares are notated from 0 (top left, a8)
+ * to 63 (bottom right, h1) like everywhere else, bitboard masks use bit i for square i.
+ */
+
+public final class AttackTables {
+
+    // Ray directions and their index offsets, the first four are straight, the last four diagonal, opposite
+    // directions differ in the lowest bit
+    public static final int NORTH = 0;
+    public static final int SOUTH = 1;
+    public static final int EAST = 2;
+    public static final int WEST = 3;
+    public static final int NORTH_EAST = 4;
+    public static final int SOUTH_WEST = 5;
+    public static final int NORTH_WEST = 6;
+    public static final int SOUTH_EAST = 7;
+
+    public static final int[] DIRECTION_OFFSETS = {-8, 8, 1, -1, -7, 7, -9, 9};
+    private static final int[] DIRECTION_FILES = {0, 0, 1, -1, 1, -1, -1, 1};
+    private static final int[] DIRECTION_RANKS = {1, -1, 0, 0, 1, -1, 1, -1};
+
+    public static final byte[][] KNIGHT = new byte[64][];
+    public static final byte[][] KING = new byte[64][];
+    // Squares attacked by a pawn standing on the square
+    public static final byte[][] WHITE_PAWN = new byte[64][];
+    public static final byte[][] BLACK_PAWN = new byte[64][];
+
+    // Squares of a ray in walking order, [direction][square]
+    public static final byte[][][] RAYS = new byte[8][64][];
+
+    public static final long[] KNIGHT_MASK = new long[64];
+    public static final long[] KING_MASK = new long[64];
+    public static final long[] WHITE_PAWN_MASK = new long[64];
+    public static final long[] BLACK_PAWN_MASK = new long[64];
+    public static final long[][] RAY_MASK = new long[8][64];
+
+    // Squares strictly between two squares on a common line, 0 if not on a line
+    public static final long[][] BETWEEN = new long[64][64];
+    // The whole line through two squares including both, 0 if not on a line
+    public static final long[][] LINE = new long[64][64];
+
+    /**
+     * Time the class initialisation took
+     */
+
+    public static final long INIT_NANOS;
+
+    static {
+        long start = System.nanoTime();
+
+        int[][] knightSteps = {{1, 2}, {2, 1}, {2, -1}, {1, -2}, {-1, -2}, {-2, -1}, {-2, 1}, {-1, 2}};
+        int[][] kingSteps = {{0, 1}, {1, 1}, {1, 0}, {1, -1}, {0, -1}, {-1, -1}, {-1, 0}, {-1, 1}};
+        for (int square = 0; square < 64; square++) {
+            KNIGHT[square] = steps(square, knightSteps);
+            KING[square] = steps(square, kingSteps);
+            WHITE_PAWN[square] = steps(square, new int[][]{{-1, 1}, {1, 1}});
+            BLACK_PAWN[square] = steps(square, new int[][]{{-1, -1}, {1, -1}});
+            KNIGHT_MASK[square] = mask(KNIGHT[square]);
+            KING_MASK[square] = mask(KING[square]);
+            WHITE_PAWN_MASK[square] = mask(WHITE_PAWN[square]);
+            BLACK_PAWN_MASK[square] = mask(BLACK_PAWN[square]);
+
+            for (int direction = 0; direction < 8; direction++) {
+                int file = square % 8;
+                int rank = 7 - square / 8;
+                int length = 0;
+                while (onBoard(file + (length + 1) * DIRECTION_FILES[direction], rank + (length + 1) * DIRECTION_RANKS[direction])) {
+                    length++;
+                }
+                byte[] ray = new byte[length];
+                for (int i = 0; i < length; i++) ray[i] = (byte) (square + (i + 1) * DIRECTION_OFFSETS[direction]);
+                RAYS[direction][square] = ray;
+                RAY_MASK[direction][square] = mask(ray);
+            }
+        }
+
+        for (int from = 0; from < 64; from++) {
+            for (int direction = 0; direction < 8; direction++) {
+                int opposite = direction ^ 1;
+                long between = 0;
+                for (byte to : RAYS[direction][from]) {
+                    BETWEEN[from][to] = between;
+                    LINE[from][to] = RAY_MASK[direction][from] | RAY_MASK[opposite][from] | 1L << from;
+                    between |= 1L << to;
+                }
+            }
+        }
+
+        INIT_NANOS = System.nanoTime() - start;
+    }
+
+    private AttackTables() {
+    }
+
+    private static boolean onBoard(int file, int rank) {
+        return file >= 0 && file < 8 && rank >= 0 && rank < 8;
+    }
+
+    // Targets of single steps given as file and rank (counted upwards) offsets, in ascending square order
+    private static byte[] steps(int square, int[][] steps) {
+        int file = square % 8;
+        int rank = 7 - square / 8;
+        long mask = 0;
+        for (int[] step : steps) {
+            if (onBoard(file + step[0], rank + step[1])) mask |= 1L << ((7 - rank - step[1]) * 8 + file + step[0]);
+        }
+        byte[] targets = new byte[Long.bitCount(mask)];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = (byte) Long.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+        }
+        return targets;
+    }
+
+    private static long mask(byte[] squares) {
+        long mask = 0;
+        for (byte square : squares) mask |= 1L << square;
+        return mask;
+    }
+
+}
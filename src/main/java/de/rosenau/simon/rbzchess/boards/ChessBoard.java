@@ -2,6 +2,7 @@ package de.rosenau.simon.rbzchess.boards;
 
 import de.rosenau.simon.rbzchess.ChessMove;
 
+import java.nio.ByteBuffer;
 import java.util.Set;
 
 /**
@@ -12,10 +13,38 @@ public interface ChessBoard {
 
     Set<ChessMove> getPossibleMoves();
 
+    Set<ChessMove> getCaptures();
+
+    Set<ChessMove> getQuietMoves();
+
+    boolean isLegal(ChessMove move);
+
+    ChessMove getMove(String name);
+
     ChessBoard performMove(ChessMove move);
 
     String fen();
 
+    boolean isCheck();
+
+    boolean isAttacked(int square, boolean byWhite);
+
+    boolean isWhiteToMove();
+
+    long key();
+
+    char getPiece(int square);
+
+    int getHalfmoveClock();
+
+    boolean isFiftyMoveDraw();
+
+    boolean isRepetition(KeyHistory history);
+
+    boolean hasCastlingRights();
+
     double evaluate();
 
+    void encode(ByteBuffer buffer, int offset);
+
 }
@@ -0,0 +1,74 @@
+package de.rosenau.simon.rbzchess.boards;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Stack of the keys of the positions played before the current one, used to detect repetitions.
+ * A game pushes the key of every position it leaves, a search pushes the keys along its current line.
+ */
+
+public class KeyHistory {
+
+    private long[] keys = new long[256];
+
+    @Getter
+    private int size;
+
+    public void push(long key) {
+        if (size == keys.length) keys = Arrays.copyOf(keys, size * 2);
+        keys[size++] = key;
+    }
+
+    public void pop() {
+        size--;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Counts the earlier occurrences of a position. Only the positions since the last capture or pawn move
+     * are scanned as no earlier one can repeat, and only those with the same side to move.
+     *
+     * @param key           Key of the current position
+     * @param halfmoveClock Half moves since the last capture or pawn move of the current position
+     * @return Number of occurrences in the history
+     */
+
+    public int count(long key, int halfmoveClock) {
+        int count = 0;
+        int end = Math.max(0, size - halfmoveClock);
+        // The position two plies back can not be equal, both sides moved a different piece since
+        for (int i = size - 4; i >= end; i -= 2) {
+            if (keys[i] == key) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Checks whether a position of a search is to be scored as a draw by repetition. A single repetition
+     * within the searched line is enough as the side repeating could repeat again, positions before the
+     * search start have to repeat twice to be drawn by the threefold repetition rule.
+     *
+     * @param key           Key of the current position
+     * @param halfmoveClock Half moves since the last capture or pawn move of the current position
+     * @param searchStart   History size when the search started
+     * @return true if drawn
+     */
+
+    public boolean isRepetition(long key, int halfmoveClock, int searchStart) {
+        int count = 0;
+        int end = Math.max(0, size - halfmoveClock);
+        for (int i = size - 4; i >= end; i -= 2) {
+            if (keys[i] != key) continue;
+            if (i >= searchStart || ++count == 2) return true;
+        }
+        return false;
+    }
+
+}
@@ -3,6 +3,7 @@ package de.rosenau.simon.rbzchess.boards;
 import de.rosenau.simon.rbzchess.ChessMove;
 import de.rosenau.simon.rbzchess.ChessUtils;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -13,6 +14,15 @@ import java.util.Set;
 
 public class Standard implements ChessBoard {
 
+    /**
+     * Size of a position written by {@link #encode(ByteBuffer, int)}
+     */
+
+    public static final int ENCODED_SIZE = 32;
+
+    // Piece order of the 4-bit codes used in the binary encoding
+    private static final String PIECES = "PNBRQKpnbrqk";
+
     private char[] board = new char[64];
 
     private char moveRight;
@@ -27,6 +37,9 @@ public class Standard implements ChessBoard {
     private int moveSinceCaptureOrPawn;
     private int move;
 
+    // Lazily calculated Zobrist key, 0 if not calculated yet
+    private long key;
+
     private Standard() {
     }
 
@@ -76,73 +89,174 @@ public class Standard implements ChessBoard {
 
     @Override
     public Set<ChessMove> getPossibleMoves() {
-        boolean white = moveRight == 'w';
-        Set<ChessMove> set = getPossibleMovesRaw(white, true);
         Set<ChessMove> finalSet = new HashSet<>();
 
         // Check check
-        for (ChessMove move : set) {
-            Standard standard = performMove(move);
-            byte kingSquare = -1;
-            for (int i = 0; i < standard.board.length; i++) {
-                if (standard.board[i] != 'K' && standard.board[i] != 'k') continue;
-                if (white == (standard.board[i] == 'K')) {
-                    kingSquare = (byte) i;
-                    break;
-                }
-            }
-            boolean valid = true;
-            loop:
-            for (ChessMove nextMove : standard.getPossibleMovesRaw(!white, false)) {
-                for (int i = 0; i < nextMove.getMoves().length; i++) {
-                    byte b = nextMove.getMoves()[i];
-                    if (b == kingSquare) {
-                        valid = false;
-                        break loop;
-                    }
-                }
-            }
-            if (valid) finalSet.add(move);
+        for (ChessMove move : getPseudoLegalMoves(true, true)) {
+            if (isLegal(move)) finalSet.add(move);
         }
 
         return finalSet;
     }
 
-    private Set<ChessMove> getPossibleMovesRaw(boolean white, boolean includeCastle) {
+    /**
+     * Calculates captures, en passent and promotions without checking whether they leave the own king in check
+     *
+     * @return Set of ChessMove's, to be checked with {@link #isLegal(ChessMove)}
+     */
+
+    @Override
+    public Set<ChessMove> getCaptures() {
+        return getPseudoLegalMoves(true, false);
+    }
+
+    /**
+     * Calculates all moves not returned by {@link #getCaptures()} without checking whether they leave the own king in check
+     *
+     * @return Set of ChessMove's, to be checked with {@link #isLegal(ChessMove)}
+     */
+
+    @Override
+    public Set<ChessMove> getQuietMoves() {
+        return getPseudoLegalMoves(false, true);
+    }
+
+    /**
+     * Checks whether a move generated for this board does not leave the own king in check
+     *
+     * @param move Move generated by {@link #getCaptures()} or {@link #getQuietMoves()}
+     * @return true if legal
+     */
+
+    @Override
+    public boolean isLegal(ChessMove move) {
+        boolean white = moveRight == 'w';
+        Standard standard = performMove(move);
+        return !standard.isAttacked(standard.kingSquare(white), !white);
+    }
+
+    /**
+     * Looks up a legal move by its name generating only the moves of the piece on its origin square
+     *
+     * @param name Move name like e2e4 or e7e8q
+     * @return ChessMove or null if the move is not legal on this board
+     */
+
+    @Override
+    public ChessMove getMove(String name) {
+        if (name.length() < 4) return null;
+        int from = ChessUtils.squareNameToIndex(name.substring(0, 2));
+        char c = board[from];
+        if (c == 0 || (moveRight == 'w') == (c > 96)) return null;
+
         Set<ChessMove> set = new HashSet<>();
-        // Pawn moves
-        {
-            for (byte i = 0; i < board.length; i++) {
-                char c = board[i];
-                if (c != 'P' && c != 'p') continue;
-                if (white != (c == 'P')) continue;
+        addPieceMoves(set, (byte) from, true, true);
+        if (c == 'P' || c == 'p') addEnPassentMoves(set);
+        if (c == 'K' || c == 'k') addCastleMoves(set);
+        for (ChessMove move : set) {
+            if (move.getName().equals(name)) return isLegal(move) ? move : null;
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether the king of the side to move is attacked
+     *
+     * @return true if in check
+     */
+
+    @Override
+    public boolean isCheck() {
+        boolean white = moveRight == 'w';
+        return isAttacked(kingSquare(white), !white);
+    }
+
+    @Override
+    public boolean isWhiteToMove() {
+        return moveRight == 'w';
+    }
+
+    /**
+     * Returns the piece on a square
+     *
+     * @param square Square index notated from 0 (top left) to 63 (bottom right)
+     * @return Piece in FEN notation or 0 if the square is empty
+     */
+
+    @Override
+    public char getPiece(int square) {
+        return board[square];
+    }
+
+    @Override
+    public int getHalfmoveClock() {
+        return moveSinceCaptureOrPawn;
+    }
+
+    /**
+     * Checks the fifty move rule. A checkmate given with the hundredth half move still counts as checkmate.
+     *
+     * @return true if drawn
+     */
+
+    @Override
+    public boolean isFiftyMoveDraw() {
+        return moveSinceCaptureOrPawn >= 100 && !(isCheck() && getPossibleMoves().isEmpty());
+    }
+
+    /**
+     * Checks for a threefold repetition
+     *
+     * @param history Keys of the positions played before this one
+     * @return true if this position occurred twice before
+     */
+
+    @Override
+    public boolean isRepetition(KeyHistory history) {
+        return history.count(key(), moveSinceCaptureOrPawn) >= 2;
+    }
+
+    @Override
+    public boolean hasCastlingRights() {
+        return whiteKingsideCastleable || whiteQueensideCastleable || blackKingideCastleable || blackQueensideCastleable;
+    }
+
+    private Set<ChessMove> getPseudoLegalMoves(boolean captures, boolean quiets) {
+        Set<ChessMove> set = new HashSet<>();
+        for (byte i = 0; i < board.length; i++) {
+            addPieceMoves(set, i, captures, quiets);
+        }
+        if (captures) addEnPassentMoves(set);
+        if (quiets) addCastleMoves(set);
+        return set;
+    }
+
+    /**
+     * Adds the moves of a piece of the side to move except en passent and castling.
+     * Promotions count as captures as they change the material just like them.
+     */
+
+    private void addPieceMoves(Set<ChessMove> set, byte i, boolean captures, boolean quiets) {
+        boolean white = moveRight == 'w';
+        char c = board[i];
+        if (c == 0 || white == (c > 96)) return;
+        switch (c) {
+            case 'P':
+            case 'p':
                 // reverse movement factor for white pawns
                 int factor = c == 'p' ? 1 : -1;
+                boolean promotion = (factor < 0 && i < 16) || (factor > 0 && i >= 48);
 
                 // Forward movement by 1
-                if (board[i + 8 * factor] == 0) {
-                    if ((factor < 0 && i < 16) || (factor > 0 && i >= 48)) {
-                        // Promotion
-
-                        int to = i + 8 * factor;
-                        String name = ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(to);
-
-                        for (char p : (factor < 0 ? new char[]{'N', 'B', 'R', 'Q'} : new char[]{'n', 'b', 'r', 'q'})) {
-                            set.add(ChessMove.builder().name(name + (char) (p > 96 ? p : p + 32)).move(i, to).conversion(to, p).build());
-                        }
-                    } else {
-                        // Default
-                        set.add(ChessMove.builder()
-                                .name(ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(i + 8 * factor))
-                                .move(i, i + 8 * factor)
-                                .build());
-                    }
+                if (board[i + 8 * factor] == 0 && (promotion ? captures : quiets)) {
+                    addPawnMove(set, i, i + 8 * factor, promotion);
                 }
 
                 // Forward movement by 2
                 if (
-                    // Check on second row
-                        ((factor > 0 && (i >= 8 && i < 16)) || (factor < 0 && (i >= 48 && i < 56)))
+                        quiets
+                                // Check on second row
+                                && ((factor > 0 && (i >= 8 && i < 16)) || (factor < 0 && (i >= 48 && i < 56)))
                                 // Check squares empty
                                 && board[i + 8 * factor] == 0 && board[i + 16 * factor] == 0
                         ) {
@@ -153,513 +267,159 @@ public class Standard implements ChessBoard {
                 }
 
                 // Capturing pieces
-                if (factor < 0) {
-                    // White
-                    for (int o : new int[]{-7, -9}) {
-                        // Check border
-                        if (o == -7 && i + 1 % 8 == 0) continue;
-                        if (o == -9 && i % 8 == 0) continue;
-
-                        if (board[i + o] != 0 && board[i + o] > 96) {
-                            if (i < 16) {
-                                // Promotion
-                                int to = i + o;
-                                String name = ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(to);
-
-                                for (char p : (factor < 0 ? new char[]{'N', 'B', 'R', 'Q'} : new char[]{'n', 'b', 'r', 'q'})) {
-                                    set.add(ChessMove.builder().name(name + (char) (p > 96 ? p : p + 32)).move(i, to).conversion(to, p).build());
-                                }
-                            } else {
-                                // Default
-                                set.add(ChessMove.builder()
-                                        .name(ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(i + o))
-                                        .move(i, i + o)
-                                        .build());
-                            }
-                        }
-                    }
-                } else {
-                    // Black
-                    for (int o : new int[]{7, 9}) {
-                        // Check border
-                        if (o == 7 && i % 8 == 0) continue;
-                        if (o == 9 && i + 1 % 8 == 0) continue;
-
-                        if (board[i + o] != 0 && board[i + o] < 96) {
-                            if (i >= 48) {
-                                // Promotion
-                                int to = i + o;
-                                String name = ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(to);
-
-                                for (char p : (factor < 0 ? new char[]{'N', 'B', 'R', 'Q'} : new char[]{'n', 'b', 'r', 'q'})) {
-                                    set.add(ChessMove.builder().name(name + (char) (p > 96 ? p : p + 32)).move(i, to).conversion(to, p).build());
-                                }
-                            } else {
-                                // Default
-                                set.add(ChessMove.builder()
-                                        .name(ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(i + o))
-                                        .move(i, i + o)
-                                        .build());
-                            }
-                        }
+                if (captures) {
+                    for (byte to : white ? AttackTables.WHITE_PAWN[i] : AttackTables.BLACK_PAWN[i]) {
+                        if (board[to] != 0 && white == (board[to] > 96)) addPawnMove(set, i, to, promotion);
                     }
                 }
-            }
+                break;
+            case 'N':
+            case 'n':
+                addStepMoves(set, i, AttackTables.KNIGHT[i], captures, quiets);
+                break;
+            case 'K':
+            case 'k':
+                addStepMoves(set, i, AttackTables.KING[i], captures, quiets);
+                break;
+            case 'R':
+            case 'r':
+                addRayMoves(set, i, AttackTables.NORTH, AttackTables.WEST, captures, quiets);
+                break;
+            case 'B':
+            case 'b':
+                addRayMoves(set, i, AttackTables.NORTH_EAST, AttackTables.SOUTH_EAST, captures, quiets);
+                break;
+            case 'Q':
+            case 'q':
+                addRayMoves(set, i, AttackTables.NORTH, AttackTables.SOUTH_EAST, captures, quiets);
+                break;
+            default:
+                break;
         }
-        // En passent
-        if (entPassent != -1) {
-            if (white) {
-                // Square iteration
-                for (int i : new int[]{7, 9}) {
-                    // Check border
-                    if (i == 7 && entPassent % 8 == 0) continue;
-                    if (i == 9 && entPassent + 1 % 8 == 0) continue;
-                    // Check if pawn is nearby
-                    if (board[entPassent + i] == 'P') {
-                        set.add(ChessMove.builder()
-                                .name(ChessUtils.squareIndexToName(entPassent + i) + ChessUtils.squareIndexToName(entPassent))
-                                .move(entPassent + i, entPassent)
-                                .conversion(entPassent + 8, (char) 0)
-                                .build());
-                    }
-                }
-            } else {
-                // Square iteration
-                for (int i : new int[]{-7, -9}) {
-                    // Check border
-                    if (i == -9 && entPassent % 8 == 0) continue;
-                    if (i == -7 && entPassent + 1 % 8 == 0) continue;
-                    // Check if pawn is nearby
-                    if (board[entPassent + i] == 'p') {
-                        set.add(ChessMove.builder()
-                                .name(ChessUtils.squareIndexToName(entPassent + i) + ChessUtils.squareIndexToName(entPassent))
-                                .move(entPassent + i, entPassent)
-                                .conversion(entPassent - 8, (char) 0)
-                                .build());
-                    }
-                }
-            }
-        }
-        // Knight moves
-        {
+    }
 
-            // Hard-coded becuase of performance improvements
-            final byte[][] squaresToMove = new byte[][]{
-                    new byte[]{10, 17},
-                    new byte[]{11, 16, 18},
-                    new byte[]{8, 12, 17, 19},
-                    new byte[]{9, 13, 18, 20},
-                    new byte[]{10, 14, 19, 21},
-                    new byte[]{11, 15, 20, 22},
-                    new byte[]{12, 21, 23},
-                    new byte[]{13, 22},
-
-                    new byte[]{2, 18, 25},
-                    new byte[]{3, 19, 24, 26},
-                    new byte[]{0, 4, 16, 20, 25, 27},
-                    new byte[]{1, 5, 17, 21, 26, 28},
-                    new byte[]{2, 6, 18, 22, 27, 29},
-                    new byte[]{3, 7, 19, 23, 28, 30},
-                    new byte[]{4, 20, 29, 31},
-                    new byte[]{5, 21, 30},
-
-                    new byte[]{1, 10, 26, 33},
-                    new byte[]{0, 2, 11, 27, 32, 34},
-                    new byte[]{1, 3, 8, 12, 24, 28, 33, 35},
-                    new byte[]{2, 4, 9, 13, 25, 29, 34, 36},
-                    new byte[]{3, 5, 10, 14, 26, 30, 35, 37},
-                    new byte[]{4, 6, 11, 15, 27, 31, 36, 38},
-                    new byte[]{5, 7, 12, 28, 37, 39},
-                    new byte[]{6, 13, 29, 38},
-
-                    new byte[]{9, 18, 34, 41},
-                    new byte[]{8, 10, 19, 35, 40, 42},
-                    new byte[]{9, 11, 16, 20, 32, 36, 41, 43},
-                    new byte[]{10, 12, 17, 21, 33, 37, 42, 44},
-                    new byte[]{11, 13, 18, 22, 34, 38, 43, 45},
-                    new byte[]{12, 14, 19, 23, 35, 39, 44, 46},
-                    new byte[]{13, 15, 20, 36, 45, 47},
-                    new byte[]{14, 21, 37, 46},
-
-                    new byte[]{17, 26, 42, 49},
-                    new byte[]{16, 18, 27, 43, 48, 50},
-                    new byte[]{17, 19, 24, 28, 40, 44, 49, 51},
-                    new byte[]{18, 20, 25, 29, 41, 45, 50, 52},
-                    new byte[]{19, 21, 26, 30, 42, 46, 51, 53},
-                    new byte[]{20, 22, 27, 31, 43, 47, 52, 54},
-                    new byte[]{21, 23, 28, 44, 53, 55},
-                    new byte[]{22, 29, 45, 54},
-
-                    new byte[]{25, 34, 50, 57},
-                    new byte[]{24, 26, 35, 51, 56, 58},
-                    new byte[]{25, 27, 32, 36, 48, 52, 57, 59},
-                    new byte[]{26, 28, 33, 37, 49, 53, 58, 60},
-                    new byte[]{27, 29, 34, 38, 50, 54, 59, 61},
-                    new byte[]{28, 30, 35, 39, 51, 55, 60, 62},
-                    new byte[]{29, 31, 36, 52, 61, 63},
-                    new byte[]{30, 37, 53, 62},
-
-                    new byte[]{33, 42, 58},
-                    new byte[]{32, 34, 43, 59},
-                    new byte[]{33, 35, 40, 44, 56, 60},
-                    new byte[]{34, 36, 41, 45, 57, 61},
-                    new byte[]{35, 37, 42, 46, 58, 62},
-                    new byte[]{36, 38, 43, 47, 59, 63},
-                    new byte[]{37, 39, 44, 60},
-                    new byte[]{38, 45, 61},
-
-                    new byte[]{41, 50},
-                    new byte[]{40, 42, 51},
-                    new byte[]{41, 43, 48, 52},
-                    new byte[]{42, 44, 49, 53},
-                    new byte[]{43, 45, 50, 54},
-                    new byte[]{44, 46, 51, 55},
-                    new byte[]{45, 47, 52},
-                    new byte[]{46, 53}
-            };
-
-            // Iterate over squares
-            for (byte i = 0; i < board.length; i++) {
-                char c = board[i];
-                // Check if night is on square
-                if (c != 'N' && c != 'n') continue;
-                // Check if night is of valid color
-                if (white != (c == 'N')) continue;
-
-                // Iterate over possible squares
-                for (byte move : squaresToMove[i]) {
-                    // Check if square is empty or of a captureable color
-                    if (board[move] == 0 || board[move] > 96 == (c == 'N')) {
-                        set.add(ChessMove.builder()
-                                .name(ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(move))
-                                .move(i, move)
-                                .build());
-                    }
-                }
+    private void addEnPassentMoves(Set<ChessMove> set) {
+        if (entPassent == -1) return;
+        boolean white = moveRight == 'w';
+        // Pawns attacking the square are found on the squares a pawn of the other color would attack from it
+        for (byte from : white ? AttackTables.BLACK_PAWN[entPassent] : AttackTables.WHITE_PAWN[entPassent]) {
+            if (board[from] == (white ? 'P' : 'p')) {
+                set.add(ChessMove.builder()
+                        .name(ChessUtils.squareIndexToName(from) + ChessUtils.squareIndexToName(entPassent))
+                        .move(from, entPassent)
+                        .build());
             }
         }
-        // Rook & straight Queen moves
-        {
-            // Iterate over all squares
-            for (byte i = 0; i < board.length; i++) {
-                char c = board[i];
-                // Check if piece is of type rook or queen
-                if (c != 'R' && c != 'r' && c != 'Q' && c != 'q') continue;
-                // Check if piece is of valid color
-                if (white != (c == 'R' || c == 'Q')) continue;
-
-                // Check squares down
-                for (int o = 1; o < 8 - (i / 8); o++) {
-                    int to = i + o * 8;
-                    if (board[to] == 0 || white == (board[to] > 96)) {
-                        set.add(ChessMove.builder()
-                                .name(ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(to))
-                                .move(i, to)
-                                .build());
-                        if (board[to] != 0) break;
-                    } else break;
+    }
+
+    private void addCastleMoves(Set<ChessMove> set) {
+        if (moveRight == 'w') {
+            if ((whiteQueensideCastleable || whiteKingsideCastleable) && !isAttacked(60, false)) {
+                if (whiteQueensideCastleable && board[56] == 'R' && board[57] == 0 && board[58] == 0 && board[59] == 0 && board[60] == 'K'
+                        && !isAttacked(59, false) && !isAttacked(58, false)) {
+                    set.add(ChessMove.builder().name("e1c1").move(60, 58).move(56, 59).build());
                 }
-                // Check squares up
-                for (int o = 1; o < i / 8 + 1; o++) {
-                    int to = i - o * 8;
-                    if (board[to] == 0 || white == (board[to] > 96)) {
-                        set.add(ChessMove.builder()
-                                .name(ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(to))
-                                .move(i, to)
-                                .build());
-                        if (board[to] != 0) break;
-                    } else break;
+                if (whiteKingsideCastleable && board[63] == 'R' && board[62] == 0 && board[61] == 0 && board[60] == 'K'
+                        && !isAttacked(61, false) && !isAttacked(62, false)) {
+                    set.add(ChessMove.builder().name("e1g1").move(60, 62).move(63, 61).build());
                 }
-                // Check squares right
-                for (int o = 1; o < 8 - (i % 8); o++) {
-                    int to = i + o;
-                    if (board[to] == 0 || white == (board[to] > 96)) {
-                        set.add(ChessMove.builder()
-                                .name(ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(to))
-                                .move(i, to)
-                                .build());
-                        if (board[to] != 0) break;
-                    } else break;
+            }
+        } else {
+            if ((blackQueensideCastleable || blackKingideCastleable) && !isAttacked(4, true)) {
+                if (blackQueensideCastleable && board[0] == 'r' && board[1] == 0 && board[2] == 0 && board[3] == 0 && board[4] == 'k'
+                        && !isAttacked(3, true) && !isAttacked(2, true)) {
+                    set.add(ChessMove.builder().name("e8c8").move(4, 2).move(0, 3).build());
                 }
-                // Check squares left
-                for (int o = 1; o < (i % 8) + 1; o++) {
-                    int to = i - o;
-                    if (board[to] == 0 || white == (board[to] > 96)) {
-                        set.add(ChessMove.builder()
-                                .name(ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(to))
-                                .move(i, to)
-                                .build());
-                        if (board[to] != 0) break;
-                    } else break;
+                if (blackKingideCastleable && board[7] == 'r' && board[6] == 0 && board[5] == 0 && board[4] == 'k'
+                        && !isAttacked(5, true) && !isAttacked(6, true)) {
+                    set.add(ChessMove.builder().name("e8g8").move(4, 6).move(7, 5).build());
                 }
             }
         }
-        // Bishop and diagonal Queen moves
-        {
-            // Iterate over possible squares
-            for (byte i = 0; i < board.length; i++) {
-                char c = board[i];
-                // Check if piece on square is type if bishop or queen
-                if (c != 'B' && c != 'b' && c != 'Q' && c != 'q') continue;
-                // Check if piece is of valid color
-                if (white != (c == 'B' || c == 'Q')) continue;
-
-                // Check bottom left diagonal
-                // Calculate boarder distance
-                int d = Math.min((i % 8) + 1, 8 - (i / 8));
-                for (int o = 1; o < d; o++) {
-                    int to = i + o * 7;
-                    if (board[to] == 0 || white == (board[to] > 96)) {
-                        set.add(ChessMove.builder()
-                                .name(ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(to))
-                                .move(i, to)
-                                .build());
-                        if (board[to] != 0) break;
-                    } else break;
-                }
-
-                // Check top right diagonal
-                // Calculate boarder distance
-                d = Math.min(8 - (i % 8), (i / 8) + 1);
-                for (int o = 1; o < d; o++) {
-                    int to = i - o * 7;
-                    if (board[to] == 0 || white == (board[to] > 96)) {
-                        set.add(ChessMove.builder()
-                                .name(ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(to))
-                                .move(i, to)
-                                .build());
-                        if (board[to] != 0) break;
-                    } else break;
-                }
+    }
 
-                // Check bottom right diagonal
-                // Calculate boarder distance
-                d = Math.min(8 - (i % 8), 8 - (i / 8));
-                for (int o = 1; o < d; o++) {
-                    int to = i + o * 9;
-                    if (board[to] == 0 || white == (board[to] > 96)) {
-                        set.add(ChessMove.builder()
-                                .name(ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(to))
-                                .move(i, to)
-                                .build());
-                        if (board[to] != 0) break;
-                    } else break;
-                }
+    private void addPawnMove(Set<ChessMove> set, int from, int to, boolean promotion) {
+        String name = ChessUtils.squareIndexToName(from) + ChessUtils.squareIndexToName(to);
+        if (!promotion) {
+            set.add(ChessMove.builder().name(name).move(from, to).build());
+            return;
+        }
+        for (char p : (board[from] == 'P' ? new char[]{'N', 'B', 'R', 'Q'} : new char[]{'n', 'b', 'r', 'q'})) {
+            set.add(ChessMove.builder().name(name + (char) (p > 96 ? p : p + 32)).move(from, to).conversion(to, p).build());
+        }
+    }
 
-                // Check top left diagonal
-                // Calculate boarder distance
-                d = Math.min((i % 8) + 1, (i / 8) + 1);
-                for (int o = 1; o < d; o++) {
-                    int to = i - o * 9;
-                    if (board[to] == 0 || white == (board[to] > 96)) {
-                        set.add(ChessMove.builder()
-                                .name(ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(to))
-                                .move(i, to)
-                                .build());
-                        if (board[to] != 0) break;
-                    } else break;
-                }
+    private void addStepMoves(Set<ChessMove> set, byte from, byte[] targets, boolean captures, boolean quiets) {
+        boolean white = moveRight == 'w';
+        for (byte to : targets) {
+            // Check if square is empty or of a captureable color
+            if (board[to] == 0 ? quiets : captures && white == (board[to] > 96)) {
+                set.add(ChessMove.builder()
+                        .name(ChessUtils.squareIndexToName(from) + ChessUtils.squareIndexToName(to))
+                        .move(from, to)
+                        .build());
             }
         }
-        // King moves
-        {
-            // Hard-coded becuase of performance improvements
-            final byte[][] squaresToMove = new byte[][]{
-                    new byte[]{1, 8, 9},
-                    new byte[]{0, 2, 8, 9, 10},
-                    new byte[]{1, 3, 9, 10, 11},
-                    new byte[]{2, 4, 10, 11, 12},
-                    new byte[]{3, 5, 11, 12, 13},
-                    new byte[]{4, 6, 12, 13, 14},
-                    new byte[]{5, 7, 13, 14, 15},
-                    new byte[]{6, 14, 15},
-
-                    new byte[]{0, 1, 9, 16, 17},
-                    new byte[]{0, 1, 2, 8, 10, 16, 17, 18},
-                    new byte[]{1, 2, 3, 9, 11, 17, 18, 19},
-                    new byte[]{2, 3, 4, 10, 12, 18, 19, 20},
-                    new byte[]{3, 4, 5, 11, 13, 19, 20, 21},
-                    new byte[]{4, 5, 6, 12, 14, 20, 21, 22},
-                    new byte[]{5, 6, 7, 13, 15, 21, 22, 23},
-                    new byte[]{6, 7, 14, 22, 23},
-
-                    new byte[]{8, 9, 17, 24, 25},
-                    new byte[]{8, 9, 10, 16, 18, 24, 25, 26},
-                    new byte[]{9, 10, 11, 17, 19, 25, 26, 27},
-                    new byte[]{10, 11, 12, 18, 20, 26, 27, 28},
-                    new byte[]{11, 12, 13, 19, 21, 27, 28, 29},
-                    new byte[]{12, 13, 14, 20, 22, 28, 29, 30},
-                    new byte[]{13, 14, 15, 21, 23, 29, 30, 31},
-                    new byte[]{14, 15, 22, 30, 31},
-
-                    new byte[]{16, 17, 25, 32, 33},
-                    new byte[]{16, 17, 18, 24, 26, 32, 33, 34},
-                    new byte[]{17, 18, 19, 25, 27, 33, 34, 35},
-                    new byte[]{18, 19, 20, 26, 28, 34, 35, 36},
-                    new byte[]{19, 20, 21, 27, 29, 35, 36, 37},
-                    new byte[]{20, 21, 22, 28, 30, 36, 37, 38},
-                    new byte[]{21, 22, 23, 29, 31, 37, 38, 39},
-                    new byte[]{22, 23, 30, 38, 39},
-
-                    new byte[]{24, 25, 33, 40, 41},
-                    new byte[]{24, 25, 26, 32, 34, 40, 41, 42},
-                    new byte[]{25, 26, 27, 33, 35, 41, 42, 43},
-                    new byte[]{26, 27, 28, 34, 36, 42, 43, 44},
-                    new byte[]{27, 28, 29, 35, 37, 43, 44, 45},
-                    new byte[]{28, 29, 30, 36, 38, 44, 45, 46},
-                    new byte[]{29, 30, 31, 37, 39, 45, 46, 47},
-                    new byte[]{30, 31, 38, 46, 47},
-
-                    new byte[]{32, 33, 41, 48, 49},
-                    new byte[]{32, 33, 34, 40, 42, 48, 49, 50},
-                    new byte[]{33, 34, 35, 41, 43, 49, 50, 51},
-                    new byte[]{34, 35, 36, 42, 44, 50, 51, 52},
-                    new byte[]{35, 36, 37, 43, 45, 51, 52, 53},
-                    new byte[]{36, 37, 38, 44, 46, 52, 53, 54},
-                    new byte[]{37, 38, 39, 45, 47, 53, 54, 55},
-                    new byte[]{38, 39, 46, 54, 55},
-
-                    new byte[]{40, 41, 49, 56, 57},
-                    new byte[]{40, 41, 42, 48, 50, 56, 57, 58},
-                    new byte[]{41, 42, 43, 49, 51, 57, 58, 59},
-                    new byte[]{42, 43, 44, 50, 52, 58, 59, 60},
-                    new byte[]{43, 44, 45, 51, 53, 59, 60, 61},
-                    new byte[]{44, 45, 46, 52, 54, 60, 61, 62},
-                    new byte[]{45, 46, 47, 53, 55, 61, 62, 63},
-                    new byte[]{46, 47, 54, 62, 63},
-
-                    new byte[]{48, 49, 57},
-                    new byte[]{48, 49, 50, 56, 58},
-                    new byte[]{49, 50, 51, 57, 59},
-                    new byte[]{50, 51, 52, 58, 60},
-                    new byte[]{51, 52, 53, 59, 61},
-                    new byte[]{52, 53, 54, 60, 62},
-                    new byte[]{53, 54, 55, 61, 63},
-                    new byte[]{54, 55, 62}
-            };
-
-            for (byte i = 0; i < board.length; i++) {
-                char c = board[i];
-                if (c != 'K' && c != 'k') continue;
-                if (white != (c == 'K')) continue;
-
-                for (byte move : squaresToMove[i]) {
-                    if (board[move] == 0 || board[move] > 96 == (c == 'K')) {
-                        set.add(ChessMove.builder()
-                                .name(ChessUtils.squareIndexToName(i) + ChessUtils.squareIndexToName(move))
-                                .move(i, move)
-                                .build());
-                    }
+    }
+
+    // Walks the ray directions firstDirection to lastDirection until the border or the first piece
+    private void addRayMoves(Set<ChessMove> set, byte from, int firstDirection, int lastDirection, boolean captures, boolean quiets) {
+        boolean white = moveRight == 'w';
+        for (int direction = firstDirection; direction <= lastDirection; direction++) {
+            for (byte to : AttackTables.RAYS[direction][from]) {
+                if (board[to] == 0) {
+                    if (!quiets) continue;
+                } else if (!captures || white != (board[to] > 96)) {
+                    break;
                 }
+                set.add(ChessMove.builder()
+                        .name(ChessUtils.squareIndexToName(from) + ChessUtils.squareIndexToName(to))
+                        .move(from, to)
+                        .build());
+                if (board[to] != 0) break;
             }
         }
+    }
 
-        // Check castle
-        if (includeCastle) {
-            if (white) {
-                if (whiteQueensideCastleable || whiteKingsideCastleable) {
-                    // Check in check
-                    boolean inCheck = false;
-                    loop:
-                    for (ChessMove move : getPossibleMovesRaw(false, false)) {
-                        for (byte b : move.getMoves()) {
-                            if (b == 60) {
-                                inCheck = true;
-                                break loop;
-                            }
-                        }
-                    }
-                    if (!inCheck) {
-                        if (whiteQueensideCastleable) {
-                            if (board[56] == 'R' && board[57] == 0 && board[58] == 0 && board[59] == 0 && board[60] == 'K') {
-                                ChessMove move = ChessMove.builder().name("e1c1").move(60, 58).move(56, 59).build();
-                                Standard standard = performMove(move);
-                                boolean valid = true;
-                                loop:
-                                for (ChessMove nextMove : standard.getPossibleMovesRaw(false, false)) {
-                                    for (byte b : nextMove.getMoves()) {
-                                        if (b == 59 || b == 58) {
-                                            valid = false;
-                                            break loop;
-                                        }
-                                    }
-                                }
-                                if (valid) set.add(move);
-                            }
-                        }
-                        if (whiteKingsideCastleable) {
-                            if (board[63] == 'R' && board[62] == 0 && board[61] == 0 && board[60] == 'K') {
-                                ChessMove move = ChessMove.builder().name("e1g1").move(60, 62).move(63, 61).build();
-                                Standard standard = performMove(move);
-                                boolean valid = true;
-                                loop:
-                                for (ChessMove nextMove : standard.getPossibleMovesRaw(false, false)) {
-                                    for (byte b : nextMove.getMoves()) {
-                                        if (b == 61 || b == 62) {
-                                            valid = false;
-                                            break loop;
-                                        }
-                                    }
-                                }
-                                if (valid) set.add(move);
-                            }
-                        }
-                    }
-                }
-            } else {
-                if (blackQueensideCastleable || blackKingideCastleable) {
-                    // Check in check
-                    boolean inCheck = false;
-                    loop:
-                    for (ChessMove move : getPossibleMovesRaw(true, false)) {
-                        for (byte b : move.getMoves()) {
-                            if (b == 4) {
-                                inCheck = true;
-                                break loop;
-                            }
-                        }
-                    }
-                    if (!inCheck) {
-                        if (blackQueensideCastleable) {
-                            if (board[0] == 'r' && board[1] == 0 && board[2] == 0 && board[3] == 0 && board[4] == 'k') {
-                                ChessMove move = ChessMove.builder().name("e8c8").move(4, 2).move(0, 3).build();
-                                Standard standard = performMove(move);
-                                boolean valid = true;
-                                loop:
-                                for (ChessMove nextMove : standard.getPossibleMovesRaw(true, false)) {
-                                    for (byte b : nextMove.getMoves()) {
-                                        if (b == 3 || b == 2) {
-                                            valid = false;
-                                            break loop;
-                                        }
-                                    }
-                                }
-                                if (valid) set.add(move);
-                            }
-                        }
-                        if (blackKingideCastleable) {
-                            if (board[7] == 'r' && board[6] == 0 && board[5] == 0 && board[4] == 'k') {
-                                ChessMove move = ChessMove.builder().name("e8g8").move(4, 6).move(7, 5).build();
-                                Standard standard = performMove(move);
-                                boolean valid = true;
-                                loop:
-                                for (ChessMove nextMove : standard.getPossibleMovesRaw(true, false)) {
-                                    for (byte b : nextMove.getMoves()) {
-                                        if (b == 5 || b == 6) {
-                                            valid = false;
-                                            break loop;
-                                        }
-                                    }
-                                }
-                                if (valid) set.add(move);
-                            }
-                        }
-                    }
+    /**
+     * Checks whether a square is attacked by a side
+     *
+     * @param square  Square index notated from 0 (top left) to 63 (bottom right)
+     * @param byWhite Color of the attacking side
+     * @return true if attacked
+     */
+
+    @Override
+    public boolean isAttacked(int square, boolean byWhite) {
+        // Pawns attacking the square stand where a pawn of the other color on it would attack
+        for (byte from : byWhite ? AttackTables.BLACK_PAWN[square] : AttackTables.WHITE_PAWN[square]) {
+            if (board[from] == (byWhite ? 'P' : 'p')) return true;
+        }
+        for (byte from : AttackTables.KNIGHT[square]) {
+            if (board[from] == (byWhite ? 'N' : 'n')) return true;
+        }
+        for (byte from : AttackTables.KING[square]) {
+            if (board[from] == (byWhite ? 'K' : 'k')) return true;
+        }
+        for (int direction = 0; direction < 8; direction++) {
+            for (byte from : AttackTables.RAYS[direction][square]) {
+                char c = board[from];
+                if (c == 0) continue;
+                if (byWhite == (c < 96)) {
+                    char type = (char) (c | 32);
+                    if (type == 'q' || type == (direction < AttackTables.NORTH_EAST ? 'r' : 'b')) return true;
                 }
+                break;
             }
         }
+        return false;
+    }
 
-        return set;
+    private int kingSquare(boolean white) {
+        for (int i = 0; i < board.length; i++) {
+            if (board[i] == (white ? 'K' : 'k')) return i;
+        }
+        return -1;
     }
 
     /**
@@ -688,6 +448,11 @@ public class Standard implements ChessBoard {
             byte b = move.getMoves()[i];
             if (b == -1) continue;
 
+            // En passent capture, the captured pawn stands beside the moving one
+            if (b == entPassent && (standard.board[i] == 'P' || standard.board[i] == 'p')) {
+                standard.board[i / 8 * 8 + b % 8] = 0;
+            }
+
             // Move since capture or pawn
             if (standard.board[b] != 0 || standard.board[i] == 'p' || standard.board[i] == 'P') {
                 standard.moveSinceCaptureOrPawn = 0;
@@ -704,15 +469,11 @@ public class Standard implements ChessBoard {
                 standard.blackKingideCastleable = false;
                 standard.blackQueensideCastleable = false;
             }
-            if (standard.board[b] == 'R' && b == 56) {
-                standard.whiteQueensideCastleable = false;
-            } else if (standard.board[b] == 'R' && b == 63) {
-                standard.whiteKingsideCastleable = false;
-            } else if (standard.board[b] == 'r' && b == 0) {
-                standard.blackQueensideCastleable = false;
-            } else if (standard.board[b] == 'r' && b == 7) {
-                standard.blackKingideCastleable = false;
-            }
+            // A rook leaving its corner or captured on it loses the right for good
+            if (i == 56 || b == 56) standard.whiteQueensideCastleable = false;
+            if (i == 63 || b == 63) standard.whiteKingsideCastleable = false;
+            if (i == 0 || b == 0) standard.blackQueensideCastleable = false;
+            if (i == 7 || b == 7) standard.blackKingideCastleable = false;
 
             // En passent
             if (Math.abs(i - b) == 16 && (standard.board[b] == 'P' || standard.board[b] == 'p')) {
@@ -784,6 +545,138 @@ public class Standard implements ChessBoard {
         return builder.toString();
     }
 
+    /**
+     * Calculates the Zobrist key of the position in the Polyglot layout, see {@link Zobrist}
+     *
+     * @return key
+     */
+
+    @Override
+    public long key() {
+        if (key != 0) return key;
+        long key = 0;
+        for (int i = 0; i < board.length; i++) {
+            if (board[i] != 0) key ^= Zobrist.piece(board[i], i);
+        }
+        if (whiteKingsideCastleable) key ^= Zobrist.castle(0);
+        if (whiteQueensideCastleable) key ^= Zobrist.castle(1);
+        if (blackKingideCastleable) key ^= Zobrist.castle(2);
+        if (blackQueensideCastleable) key ^= Zobrist.castle(3);
+        // En passent only counts if a pawn of the side to move can actually capture
+        if (entPassent != -1) {
+            int file = entPassent % 8;
+            int pawn = moveRight == 'w' ? entPassent + 8 : entPassent - 8;
+            char capturer = moveRight == 'w' ? 'P' : 'p';
+            if ((file > 0 && board[pawn - 1] == capturer) || (file < 7 && board[pawn + 1] == capturer)) {
+                key ^= Zobrist.enPassent(file);
+            }
+        }
+        if (moveRight == 'w') key ^= Zobrist.turn();
+        this.key = key;
+        return key;
+    }
+
+    /**
+     * Writes the position in its packed binary form of {@link #ENCODED_SIZE} bytes at the given offset.
+     * Layout: occupancy bitmask (8 bytes), one 4-bit piece code per occupied square in square order (16 bytes),
+     * side and castling flags (1 byte), en passent square (1 byte), half move clock and move number (2 bytes each)
+     * and 2 bytes of padding. Does not change the buffers position and does not allocate.
+     *
+     * @param buffer Buffer to write to
+     * @param offset Absolute offset in buffer
+     */
+
+    @Override
+    public void encode(ByteBuffer buffer, int offset) {
+        long occupancy = 0;
+        int pieces = 0;
+        for (int i = 0; i < board.length; i++) {
+            if (board[i] == 0) continue;
+            // Checked before anything is written, an unknown piece would corrupt the packed codes
+            if (PIECES.indexOf(board[i]) < 0) throw new IllegalStateException("Unknown piece " + board[i] + " can not be encoded");
+            occupancy |= 1L << i;
+            pieces++;
+        }
+        if (pieces > 32) throw new IllegalStateException("Position with more than 32 pieces can not be encoded");
+        buffer.putLong(offset, occupancy);
+
+        // Piece codes, two per byte with the first piece in the high nibble
+        int nibble = 0;
+        int packed = 0;
+        for (char c : board) {
+            if (c == 0) continue;
+            packed = packed << 4 | PIECES.indexOf(c);
+            if ((++nibble & 1) == 0) {
+                buffer.put(offset + 8 + nibble / 2 - 1, (byte) packed);
+                packed = 0;
+            }
+        }
+        if ((nibble & 1) != 0) buffer.put(offset + 8 + nibble / 2, (byte) (packed << 4));
+        for (int i = (nibble + 1) / 2; i < 16; i++) buffer.put(offset + 8 + i, (byte) 0);
+
+        int flags = 0;
+        if (moveRight == 'b') flags |= 1;
+        if (whiteKingsideCastleable) flags |= 2;
+        if (whiteQueensideCastleable) flags |= 4;
+        if (blackKingideCastleable) flags |= 8;
+        if (blackQueensideCastleable) flags |= 16;
+        buffer.put(offset + 24, (byte) flags);
+        buffer.put(offset + 25, entPassent);
+        buffer.putShort(offset + 26, (short) moveSinceCaptureOrPawn);
+        buffer.putShort(offset + 28, (short) move);
+        buffer.putShort(offset + 30, (short) 0);
+    }
+
+    /**
+     * Reads a position written by {@link #encode(ByteBuffer, int)} into a new board. Does not change the buffers
+     * position.
+     *
+     * @param buffer Buffer to read from
+     * @param offset Absolute offset in buffer
+     * @return Standard
+     */
+
+    public static Standard decode(ByteBuffer buffer, int offset) {
+        return decodeInto(buffer, offset, new Standard());
+    }
+
+    /**
+     * Reads a position written by {@link #encode(ByteBuffer, int)} over an existing board without allocating.
+     * Does not change the buffers position. Boards derived from the target by {@link #performMove(ChessMove)} are
+     * copies and stay valid.
+     *
+     * @param buffer   Buffer to read from
+     * @param offset   Absolute offset in buffer
+     * @param standard Board to overwrite
+     * @return The overwritten board
+     */
+
+    public static Standard decodeInto(ByteBuffer buffer, int offset, Standard standard) {
+        Arrays.fill(standard.board, (char) 0);
+        standard.key = 0;
+        long occupancy = buffer.getLong(offset);
+        int nibble = 0;
+        for (int i = 0; i < 64; i++) {
+            if ((occupancy & 1L << i) == 0) continue;
+            int packed = buffer.get(offset + 8 + nibble / 2);
+            int code = (nibble & 1) == 0 ? packed >> 4 & 15 : packed & 15;
+            if (code >= PIECES.length()) throw new IllegalArgumentException("Invalid piece code " + code);
+            standard.board[i] = PIECES.charAt(code);
+            nibble++;
+        }
+
+        int flags = buffer.get(offset + 24);
+        standard.moveRight = (flags & 1) != 0 ? 'b' : 'w';
+        standard.whiteKingsideCastleable = (flags & 2) != 0;
+        standard.whiteQueensideCastleable = (flags & 4) != 0;
+        standard.blackKingideCastleable = (flags & 8) != 0;
+        standard.blackQueensideCastleable = (flags & 16) != 0;
+        standard.entPassent = buffer.get(offset + 25);
+        standard.moveSinceCaptureOrPawn = buffer.getShort(offset + 26);
+        standard.move = buffer.getShort(offset + 28);
+        return standard;
+    }
+
     @Override
     public double evaluate() {
         double value = 0;
@@ -793,8 +686,8 @@ public class Standard implements ChessBoard {
                 case 'P':
                     value += 1;
                     break;
+                case 'N':
                 case 'B':
-                case 'K':
                     value += 3;
                     break;
                 case 'R':
@@ -806,8 +699,8 @@ public class Standard implements ChessBoard {
                 case 'p':
                     value -= 1;
                     break;
+                case 'n':
                 case 'b':
-                case 'k':
                     value -= 3;
                     break;
                 case 'r':
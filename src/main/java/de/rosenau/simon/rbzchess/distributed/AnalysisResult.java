@@ -0,0 +1,21 @@
+package de.rosenau.simon.rbzchess.distributed;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Project created by Simon Rosenau.
+ */
+
+@RequiredArgsConstructor
+@Getter
+public class AnalysisResult {
+
+    // Null if the side to move has no legal move
+    private final String moveName;
+    // Score relative to the side to move
+    private final double score;
+    private final int depth;
+    private final long nodes;
+
+}
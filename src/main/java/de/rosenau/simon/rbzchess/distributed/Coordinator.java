@@ -0,0 +1,460 @@
+package de.rosenau.simon.rbzchess.distributed;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.ai.SearchMetrics;
+import de.rosenau.simon.rbzchess.ai.TranspositionTable;
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+import de.rosenau.simon.rbzchess.boards.Standard;
+import de.rosenau.simon.rbzchess.io.Pgn;
+import de.rosenau.simon.rbzchess.selfplay.SelfPlay;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Splits perft and batch analysis into tasks, perft by root move and analysis by chunks of positions, and runs them
+ * on worker JVMs started as child processes that connect back over the loopback interface. Every connection pulls
+ * its next task from one shared queue as soon as its worker is done, so fast workers take over the work slow ones
+ * did not get to. A task lost with its worker is put back at the head of the queue and retried by another worker,
+ * the dead worker is replaced while restarts are left. Workers started by hand with {@link Worker#main} on the
+ * same machine are served the same way. See {@link Protocol} for the wire format.
+ */
+
+public class Coordinator implements Closeable {
+
+    // Attempts of a task before its job fails
+    public static final int MAX_ATTEMPTS = 3;
+    // Upper bound of the positions of one analysis task
+    public static final int MAX_CHUNK_SIZE = 64;
+    // Analysis tasks per worker, smaller chunks balance the end of a batch better
+    private static final int CHUNKS_PER_WORKER = 4;
+    // Interval in which idle connections notice a close
+    private static final long POLL_MILLIS = 100;
+
+    @Getter
+    private final int workers;
+    // Replacements of dead workers allowed over the lifetime of the coordinator
+    @Getter
+    @Setter
+    private int maxRestarts;
+    @Getter
+    private final int tableBits;
+
+    private final BlockingDeque<Task> queue = new LinkedBlockingDeque<>();
+    private final Set<Job> jobs = ConcurrentHashMap.newKeySet();
+    private final Set<Process> processes = ConcurrentHashMap.newKeySet();
+    private final Set<Thread> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger nextTaskId = new AtomicInteger();
+
+    private final AtomicInteger connectedWorkers = new AtomicInteger();
+    private final AtomicInteger restarts = new AtomicInteger();
+    private final AtomicLong completedTasks = new AtomicLong();
+    private final AtomicLong retriedTasks = new AtomicLong();
+
+    private ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    public Coordinator(int workers) {
+        this(workers, TranspositionTable.DEFAULT_SIZE_BITS);
+    }
+
+    public Coordinator(int workers, int tableBits) {
+        this.workers = workers;
+        this.maxRestarts = workers;
+        this.tableBits = tableBits;
+    }
+
+    /**
+     * Binds a free port on the loopback interface and starts the worker processes
+     *
+     * @throws IOException if the port can not be bound or a worker can not be started
+     */
+
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) throw new IllegalStateException("Already started");
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread accept = new Thread(this::accept, "coordinator-accept");
+        accept.setDaemon(true);
+        accept.start();
+        for (int i = 0; i < workers; i++) spawn();
+    }
+
+    public int getConnectedWorkers() {
+        return connectedWorkers.get();
+    }
+
+    public int getRestarts() {
+        return Math.min(restarts.get(), maxRestarts);
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks.get();
+    }
+
+    public long getRetriedTasks() {
+        return retriedTasks.get();
+    }
+
+    public int getLocalPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    /**
+     * Counts the leaf positions below every root move, each root move being one task
+     *
+     * @param board Root position
+     * @param depth Plies to expand
+     * @return Leaf count per root move name in the order of the moves
+     * @throws IOException if a task failed on {@link #MAX_ATTEMPTS} workers or no worker is left
+     * @throws InterruptedException if interrupted while waiting
+     */
+
+    public Map<String, Long> perft(ChessBoard board, int depth) throws IOException, InterruptedException {
+        if (depth < 1 || depth > 256) throw new IllegalArgumentException("Depth must be between 1 and 256");
+        List<ChessMove> moves = new ArrayList<>(board.getPossibleMoves());
+        moves.sort((a, b) -> a.getName().compareTo(b.getName()));
+        Job job = new Job(Protocol.PERFT, depth - 1, 0, moves.size());
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < moves.size(); i++) {
+            tasks.add(task(job, i, Arrays.asList(board.performMove(moves.get(i)))));
+        }
+        run(job, tasks);
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < moves.size(); i++) counts.put(moves.get(i).getName(), job.nodes[i]);
+        return counts;
+    }
+
+    /**
+     * Searches every position to the given depth on the workers, each with its own minimax search
+     *
+     * @param positions Positions to analyze
+     * @param depth     Search depth
+     * @param timeMillis Time limit per position, 0 for none
+     * @return Result per position in the order of the positions
+     * @throws IOException if a task failed on {@link #MAX_ATTEMPTS} workers or no worker is left
+     * @throws InterruptedException if interrupted while waiting
+     */
+
+    public List<AnalysisResult> analyze(List<? extends ChessBoard> positions, int depth, int timeMillis) throws IOException, InterruptedException {
+        if (depth < 1 || depth > SearchMetrics.MAX_DEPTH) throw new IllegalArgumentException("Depth must be between 1 and " + SearchMetrics.MAX_DEPTH);
+        Job job = new Job(Protocol.ANALYZE, depth, timeMillis, positions.size());
+        int chunkSize = Math.max(1, Math.min(MAX_CHUNK_SIZE, positions.size() / (Math.max(1, workers) * CHUNKS_PER_WORKER)));
+        List<Task> tasks = new ArrayList<>();
+        for (int start = 0; start < positions.size(); start += chunkSize) {
+            tasks.add(task(job, start, positions.subList(start, Math.min(positions.size(), start + chunkSize))));
+        }
+        run(job, tasks);
+        return Arrays.asList(job.results);
+    }
+
+    private Task task(Job job, int offset, List<? extends ChessBoard> boards) {
+        ByteBuffer buffer = ByteBuffer.allocate(boards.size() * Standard.ENCODED_SIZE);
+        for (int i = 0; i < boards.size(); i++) boards.get(i).encode(buffer, i * Standard.ENCODED_SIZE);
+        return new Task(nextTaskId.incrementAndGet(), job, offset, boards.size(), buffer.array());
+    }
+
+    private void run(Job job, List<Task> tasks) throws IOException, InterruptedException {
+        if (serverSocket == null) throw new IllegalStateException("Not started");
+        if (tasks.isEmpty()) return;
+        jobs.add(job);
+        try {
+            if (closed) {
+                job.fail("Coordinator closed");
+            } else if (processes.isEmpty() && connectedWorkers.get() == 0) {
+                job.fail("No worker left");
+            } else {
+                job.remaining.set(tasks.size());
+                queue.addAll(tasks);
+            }
+            job.done.await();
+        } finally {
+            jobs.remove(job);
+        }
+        if (job.failure != null) throw new IOException(job.failure);
+    }
+
+    private void spawn() throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Worker.class.getName(), InetAddress.getLoopbackAddress().getHostAddress(),
+                String.valueOf(serverSocket.getLocalPort()), String.valueOf(tableBits));
+        builder.inheritIO();
+        Process process = builder.start();
+        processes.add(process);
+        process.onExit().thenRun(() -> exited(process));
+    }
+
+    private void exited(Process process) {
+        // The replacement is registered before the dead process is removed, so there is never a moment without workers
+        if (!closed && restarts.getAndIncrement() < maxRestarts) {
+            try {
+                spawn();
+            } catch (IOException e) {
+                System.err.println("Could not restart worker: " + e);
+            }
+        }
+        processes.remove(process);
+        failIfNoWorkers();
+    }
+
+    // Called after a process exited and after a connection ended, whichever comes last sees both gone
+    private void failIfNoWorkers() {
+        // Workers connected by hand keep the jobs going
+        if (!closed && processes.isEmpty() && connectedWorkers.get() == 0) {
+            for (Job job : jobs) job.fail("No worker left");
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                // Closed by close()
+                return;
+            } catch (IOException e) {
+                continue;
+            }
+            Thread thread = new Thread(() -> serve(socket), "coordinator-connection-" + socket.getPort());
+            thread.setDaemon(true);
+            connections.add(thread);
+            thread.start();
+        }
+    }
+
+    // Feeds one worker, a task it takes down with it is retried elsewhere
+    private void serve(Socket socket) {
+        Task task = null;
+        boolean handshake = false;
+        try (Socket connection = socket) {
+            connection.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            if (in.readInt() != Protocol.MAGIC || in.readInt() != Protocol.VERSION) return;
+            handshake = true;
+            connectedWorkers.incrementAndGet();
+            while (!closed) {
+                task = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (task == null) continue;
+                // Left over from a job that already failed
+                if (task.job.failure != null) {
+                    task = null;
+                    continue;
+                }
+                Job job = task.job;
+                out.writeByte(job.type);
+                out.writeInt(task.id);
+                out.writeByte(job.depth);
+                out.writeInt(job.timeMillis);
+                out.writeShort(task.count);
+                out.write(task.positions);
+                out.flush();
+
+                if (in.readInt() != task.id) throw new IOException("Result out of order");
+                if (in.readByte() != Protocol.OK) {
+                    job.fail("Task " + task.id + " failed on worker: " + in.readUTF());
+                    task = null;
+                    continue;
+                }
+                for (int i = task.offset; i < task.offset + task.count; i++) {
+                    if (job.type == Protocol.ANALYZE) {
+                        String move = TranspositionTable.decodeMove(in.readUnsignedShort());
+                        double score = in.readDouble();
+                        int depth = in.readUnsignedByte();
+                        job.results[i] = new AnalysisResult(move, score, depth, in.readLong());
+                    } else {
+                        job.nodes[i] = in.readLong();
+                    }
+                }
+                completedTasks.incrementAndGet();
+                if (job.remaining.decrementAndGet() == 0) job.done.countDown();
+                task = null;
+            }
+            out.writeByte(Protocol.SHUTDOWN);
+            out.flush();
+        } catch (IOException e) {
+            // The worker died or the connection broke
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (handshake) connectedWorkers.decrementAndGet();
+            connections.remove(Thread.currentThread());
+            if (task != null) retry(task);
+            if (handshake) failIfNoWorkers();
+        }
+    }
+
+    private void retry(Task task) {
+        if (closed) {
+            task.job.fail("Coordinator closed");
+        } else if (++task.attempts >= MAX_ATTEMPTS) {
+            task.job.fail("Task " + task.id + " lost with " + task.attempts + " workers");
+        } else {
+            retriedTasks.incrementAndGet();
+            queue.addFirst(task);
+        }
+    }
+
+    /**
+     * Shuts the workers down, running jobs fail
+     */
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (serverSocket != null) serverSocket.close();
+        for (Job job : jobs) job.fail("Coordinator closed");
+        try {
+            // Idle connections send the shutdown within a poll interval, busy ones are cut off with their process
+            for (Thread thread : connections) thread.join(2 * POLL_MILLIS);
+            for (Process process : processes) {
+                if (!process.waitFor(POLL_MILLIS, TimeUnit.MILLISECONDS)) process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Process process : processes) process.destroyForcibly();
+        }
+    }
+
+    private static class Job {
+
+        private final byte type;
+        private final int depth;
+        private final int timeMillis;
+        private final long[] nodes;
+        private final AnalysisResult[] results;
+        private final AtomicInteger remaining = new AtomicInteger();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile String failure;
+
+        private Job(byte type, int depth, int timeMillis, int positions) {
+            this.type = type;
+            this.depth = depth;
+            this.timeMillis = timeMillis;
+            this.nodes = new long[positions];
+            this.results = new AnalysisResult[type == Protocol.ANALYZE ? positions : 0];
+        }
+
+        private void fail(String message) {
+            if (failure == null) failure = message;
+            done.countDown();
+        }
+
+    }
+
+    private static class Task {
+
+        private final int id;
+        private final Job job;
+        // Index of the first position in the job
+        private final int offset;
+        private final int count;
+        private final byte[] positions;
+        private int attempts;
+
+        private Task(int id, Job job, int offset, int count, byte[] positions) {
+            this.id = id;
+            this.job = job;
+            this.offset = offset;
+            this.count = count;
+            this.positions = positions;
+        }
+
+    }
+
+    /**
+     * Arguments: perft with a FEN (or startpos) and a depth, or analyze with a file of FEN or EPD positions, an output
+     * EPD file and a depth, optionally followed by workers=n and for analysis time=ms
+     */
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3 || !(args[0].equals("perft") || args[0].equals("analyze") && args.length >= 4)) {
+            System.out.println("Usage: perft <fen|startpos> <depth> [workers=n]");
+            System.out.println("       analyze <positions> <output> <depth> [time=ms] [workers=n]");
+            return;
+        }
+        boolean perft = args[0].equals("perft");
+        int workers = Runtime.getRuntime().availableProcessors();
+        int timeMillis = 0;
+        for (int i = perft ? 3 : 4; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            if (option[0].equals("workers")) workers = Integer.parseInt(option[1]);
+            else if (option[0].equals("time") && !perft) timeMillis = Integer.parseInt(option[1]);
+            else throw new IllegalArgumentException("Unknown option: " + args[i]);
+        }
+
+        try (Coordinator coordinator = new Coordinator(workers)) {
+            coordinator.start();
+            long start = System.nanoTime();
+            long nodes = 0;
+            if (perft) {
+                String fen = args[1].equals("startpos") ? "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1" : args[1];
+                for (Map.Entry<String, Long> entry : coordinator.perft(new Standard(fen), Integer.parseInt(args[2])).entrySet()) {
+                    System.out.println(entry.getKey() + ": " + entry.getValue());
+                    nodes += entry.getValue();
+                }
+                System.out.println("Nodes: " + nodes);
+            } else {
+                List<Standard> positions = new ArrayList<>();
+                for (String fen : SelfPlay.readOpenings(Paths.get(args[1]))) positions.add(new Standard(fen));
+                List<AnalysisResult> results = coordinator.analyze(positions, Integer.parseInt(args[3]), timeMillis);
+                try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(args[2]), StandardCharsets.UTF_8)) {
+                    for (int i = 0; i < positions.size(); i++) {
+                        writer.write(epd(positions.get(i), results.get(i)));
+                        writer.newLine();
+                        nodes += results.get(i).getNodes();
+                    }
+                }
+                System.out.println("Analyzed " + positions.size() + " positions into " + args[2]);
+            }
+            long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            System.out.println(millis + " ms, " + nodes * 1000 / millis + " nodes/s on " + workers + " workers, "
+                    + coordinator.getCompletedTasks() + " tasks, " + coordinator.getRetriedTasks() + " retried, "
+                    + coordinator.getRestarts() + " workers restarted");
+        }
+    }
+
+    // Position with best move, centipawn evaluation, depth and nodes as EPD operations
+    private static String epd(ChessBoard board, AnalysisResult result) {
+        String[] fields = board.fen().split(" ");
+        StringBuilder builder = new StringBuilder(String.join(" ", fields[0], fields[1], fields[2], fields[3]));
+        ChessMove move = result.getMoveName() == null ? null : board.getMove(result.getMoveName());
+        if (move != null) builder.append(" bm ").append(Pgn.toSan(board, move)).append(';');
+        builder.append(" ce ").append(Math.round(result.getScore() * 100)).append(';');
+        builder.append(" acd ").append(result.getDepth()).append(';');
+        builder.append(" acn ").append(result.getNodes()).append(';');
+        return builder.toString();
+    }
+
+}
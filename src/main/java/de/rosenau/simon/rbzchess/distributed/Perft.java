@@ -0,0 +1,35 @@
+package de.rosenau.simon.rbzchess.distributed;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+
+import java.util.Set;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Counts the leaf positions of the legal move tree, the usual check of a move generator against known counts.
+ */
+
+public final class Perft {
+
+    private Perft() {
+    }
+
+    /**
+     * @param board Root position
+     * @param depth Plies to expand
+     * @return Number of positions reached after exactly depth plies
+     */
+
+    public static long count(ChessBoard board, int depth) {
+        if (depth == 0) return 1;
+        Set<ChessMove> moves = board.getPossibleMoves();
+        // The leaves themselves need not be created
+        if (depth == 1) return moves.size();
+        long count = 0;
+        for (ChessMove move : moves) count += count(board.performMove(move), depth - 1);
+        return count;
+    }
+
+}
@@ -0,0 +1,36 @@
+package de.rosenau.simon.rbzchess.distributed;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Binary framing between {@link Coordinator} and {@link Worker}, all numbers big endian as written by
+ * {@link java.io.DataOutputStream}. A connecting worker sends {@link #MAGIC} and {@link #VERSION}, then the
+ * coordinator sends one task at a time and waits for its result.
+ * <pre>
+ * task:   type (1), id (4), depth (1), time in milliseconds (4), count (2), count positions of 32 bytes
+ * result: id (4), status (1), then per position
+ *         perft:   nodes (8)
+ *         analyze: packed move (2), score (8), depth (1), nodes (8)
+ *         or after an error status the message (UTF)
+ * </pre>
+ * Positions are packed by {@link de.rosenau.simon.rbzchess.boards.ChessBoard#encode}, moves by
+ * {@link de.rosenau.simon.rbzchess.ai.TranspositionTable#encodeMove}.
+ */
+
+final class Protocol {
+
+    static final int MAGIC = 0x52425A44;
+    static final int VERSION = 1;
+
+    // Task types, a shutdown has no further fields
+    static final byte SHUTDOWN = 0;
+    static final byte PERFT = 1;
+    static final byte ANALYZE = 2;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    private Protocol() {
+    }
+
+}
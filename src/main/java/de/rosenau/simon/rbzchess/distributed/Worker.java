@@ -0,0 +1,125 @@
+package de.rosenau.simon.rbzchess.distributed;
+
+import de.rosenau.simon.rbzchess.ai.Minimax;
+import de.rosenau.simon.rbzchess.ai.ScoredMove;
+import de.rosenau.simon.rbzchess.ai.TranspositionTable;
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+import de.rosenau.simon.rbzchess.boards.Standard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Worker process of a {@link Coordinator}. Connects to the coordinator, computes the tasks it is sent one after
+ * another on a single thread and exits when the coordinator shuts it down or the connection is lost. The
+ * transposition table is kept across the tasks of the connection.
+ */
+
+public class Worker {
+
+    private final TranspositionTable table;
+
+    public Worker(int tableBits) {
+        this.table = new TranspositionTable(tableBits);
+    }
+
+    /**
+     * Serves tasks until the coordinator sends a shutdown or closes the connection
+     *
+     * @param socket Connection to the coordinator
+     * @throws IOException if the connection fails
+     */
+
+    public void serve(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeInt(Protocol.MAGIC);
+        out.writeInt(Protocol.VERSION);
+        out.flush();
+        while (true) {
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException e) {
+                return;
+            }
+            if (type == Protocol.SHUTDOWN) return;
+            int id = in.readInt();
+            int depth = in.readUnsignedByte();
+            int timeMillis = in.readInt();
+            int count = in.readUnsignedShort();
+            byte[] positions = new byte[count * Standard.ENCODED_SIZE];
+            in.readFully(positions);
+            ByteBuffer buffer = ByteBuffer.wrap(positions);
+
+            // Computed completely before anything is written, so an error can still be reported instead
+            long[] nodes = new long[count];
+            ScoredMove[] lines = new ScoredMove[count];
+            String error = null;
+            try {
+                for (int i = 0; i < count; i++) {
+                    ChessBoard board = Standard.decode(buffer, i * Standard.ENCODED_SIZE);
+                    if (type == Protocol.PERFT) {
+                        nodes[i] = Perft.count(board, depth);
+                    } else if (type == Protocol.ANALYZE) {
+                        Minimax minimax = new Minimax(board, depth);
+                        minimax.setTable(table);
+                        minimax.setTimeLimitMillis(timeMillis);
+                        List<ScoredMove> result = minimax.analyze(1);
+                        // Without a legal move the side to move is mated or stalemated
+                        lines[i] = result.isEmpty() ? new ScoredMove(null, board.isCheck() ? -Minimax.MATE : 0, 0) : result.get(0);
+                        nodes[i] = minimax.getMetrics() == null ? 0 : minimax.getMetrics().getNodes();
+                    } else {
+                        throw new IllegalArgumentException("Unknown task type " + type);
+                    }
+                }
+            } catch (RuntimeException e) {
+                error = e.toString();
+            }
+
+            out.writeInt(id);
+            if (error != null) {
+                out.writeByte(Protocol.ERROR);
+                out.writeUTF(error);
+            } else {
+                out.writeByte(Protocol.OK);
+                for (int i = 0; i < count; i++) {
+                    if (type == Protocol.ANALYZE) {
+                        ScoredMove line = lines[i];
+                        out.writeShort(line.getMove() == null ? 0 : TranspositionTable.encodeMove(line.getMove()));
+                        out.writeDouble(line.getScore());
+                        out.writeByte(line.getDepth());
+                    }
+                    out.writeLong(nodes[i]);
+                }
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Arguments: host and port of the coordinator, optionally log2 of the transposition table entries
+     */
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: <host> <port> [tableBits]");
+            return;
+        }
+        int tableBits = args.length > 2 ? Integer.parseInt(args[2]) : TranspositionTable.DEFAULT_SIZE_BITS;
+        try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+            socket.setTcpNoDelay(true);
+            new Worker(tableBits).serve(socket);
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+package de.rosenau.simon.rbzchess.io;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.ChessUtils;
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Writes games in the Portable Game Notation with moves in standard algebraic notation.
+ */
+
+public class Pgn {
+
+    // Export format limit of a movetext line
+    private static final int LINE_LENGTH = 79;
+
+    private Pgn() {
+    }
+
+    /**
+     * Converts a legal move to standard algebraic notation, e.g. Nbd7, exd5, e8=Q+ or O-O#
+     *
+     * @param board Board before the move
+     * @param move  Legal move of the board
+     * @return SAN
+     */
+
+    public static String toSan(ChessBoard board, ChessMove move) {
+        return toSan(board, move, board.getPossibleMoves());
+    }
+
+    /**
+     * Converts a legal move to standard algebraic notation
+     *
+     * @param board      Board before the move
+     * @param move       Legal move of the board
+     * @param legalMoves Legal moves of the board, used to disambiguate
+     * @return SAN
+     */
+
+    public static String toSan(ChessBoard board, ChessMove move, Set<ChessMove> legalMoves) {
+        int from = move.getFrom();
+        int to = move.getTo();
+        char piece = Character.toUpperCase(board.getPiece(from));
+        boolean capture = board.getPiece(to) != 0;
+        StringBuilder builder = new StringBuilder();
+
+        if (piece == 'K' && Math.abs(to % 8 - from % 8) == 2) {
+            builder.append(to % 8 > from % 8 ? "O-O" : "O-O-O");
+        } else if (piece == 'P') {
+            // Pawns changing the file capture, en passant onto an empty square included
+            if (from % 8 != to % 8) builder.append((char) ('a' + from % 8)).append('x');
+            builder.append(ChessUtils.squareIndexToName(to));
+            if (move.getName().length() > 4) builder.append('=').append(Character.toUpperCase(move.getName().charAt(4)));
+        } else {
+            builder.append(piece);
+            boolean ambiguous = false;
+            boolean sameFile = false;
+            boolean sameRank = false;
+            for (ChessMove other : legalMoves) {
+                int otherFrom = other.getFrom();
+                if (otherFrom == from || other.getTo() != to) continue;
+                if (Character.toUpperCase(board.getPiece(otherFrom)) != piece) continue;
+                ambiguous = true;
+                if (otherFrom % 8 == from % 8) sameFile = true;
+                if (otherFrom / 8 == from / 8) sameRank = true;
+            }
+            String square = ChessUtils.squareIndexToName(from);
+            if (ambiguous) {
+                if (!sameFile) builder.append(square.charAt(0));
+                else if (!sameRank) builder.append(square.charAt(1));
+                else builder.append(square);
+            }
+            if (capture) builder.append('x');
+            builder.append(ChessUtils.squareIndexToName(to));
+        }
+
+        ChessBoard next = board.performMove(move);
+        if (next.isCheck()) builder.append(next.getPossibleMoves().isEmpty() ? '#' : '+');
+        return builder.toString();
+    }
+
+    /**
+     * Writes a game followed by an empty line
+     *
+     * @param out    Destination
+     * @param tags   Tag pairs in order of output, the seven tag roster first
+     * @param start  Starting position, used for the move numbers
+     * @param moves  Moves in SAN
+     * @param result Game termination marker, one of 1-0, 0-1, 1/2-1/2 or *
+     * @throws IOException if writing fails
+     */
+
+    public static void write(Appendable out, Map<String, String> tags, ChessBoard start, List<String> moves, String result) throws IOException {
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            String value = tag.getValue().replace("\\", "\\\\").replace("\"", "\\\"");
+            out.append('[').append(tag.getKey()).append(" \"").append(value).append("\"]\n");
+        }
+        out.append('\n');
+
+        String[] fen = start.fen().split(" ");
+        int number = Integer.parseInt(fen[5]);
+        boolean white = start.isWhiteToMove();
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < moves.size(); i++) {
+            if (white) appendToken(out, line, number + ".");
+            else if (i == 0) appendToken(out, line, number + "...");
+            appendToken(out, line, moves.get(i));
+            if (!white) number++;
+            white = !white;
+        }
+        appendToken(out, line, result);
+        out.append(line).append("\n\n");
+    }
+
+    private static void appendToken(Appendable out, StringBuilder line, String token) throws IOException {
+        if (line.length() > 0 && line.length() + 1 + token.length() > LINE_LENGTH) {
+            out.append(line).append('\n');
+            line.setLength(0);
+        }
+        if (line.length() > 0) line.append(' ');
+        line.append(token);
+    }
+
+}
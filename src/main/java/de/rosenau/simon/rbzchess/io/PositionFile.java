@@ -0,0 +1,257 @@
+package de.rosenau.simon.rbzchess.io;
+
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+import de.rosenau.simon.rbzchess.boards.Standard;
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Project created by Simon Rosenau.
+ */
+
+public class PositionFile {
+
+    private static final int MAGIC = 0x52425A50; // "RBZP"
+    private static final short VERSION = 1;
+
+    /**
+     * Header: magic (4 bytes), version (2 bytes), payload size (2 bytes), record count (8 bytes)
+     */
+
+    public static final int HEADER_SIZE = 16;
+
+    private PositionFile() {
+    }
+
+    /**
+     * Creates a new position file of fixed size records, each holding an encoded position
+     * followed by payloadSize bytes of user data (e.g. game result or analysis)
+     *
+     * @param path        File to create, existing files are truncated
+     * @param payloadSize Bytes of user data per record
+     * @return Writer
+     * @throws IOException if the file can not be created
+     */
+
+    public static Writer create(Path path, int payloadSize) throws IOException {
+        return new Writer(path, payloadSize);
+    }
+
+    /**
+     * Opens an existing position file memory-mapped for random access
+     *
+     * @param path File to open
+     * @return Reader
+     * @throws IOException if the file can not be read or is no position file
+     */
+
+    public static Reader open(Path path) throws IOException {
+        return new Reader(path);
+    }
+
+    public static class Writer implements Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        @Getter
+        private final int payloadSize;
+        private final int recordSize;
+        @Getter
+        private long count;
+
+        private Writer(Path path, int payloadSize) throws IOException {
+            if (payloadSize < 0 || payloadSize > Short.MAX_VALUE - Standard.ENCODED_SIZE) {
+                throw new IllegalArgumentException("Invalid payload size: " + payloadSize);
+            }
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.payloadSize = payloadSize;
+            this.recordSize = Standard.ENCODED_SIZE + payloadSize;
+            this.buffer = ByteBuffer.allocateDirect(Math.max(1 << 16, recordSize));
+            writeHeader();
+            channel.position(HEADER_SIZE);
+        }
+
+        /**
+         * Appends a record without payload, the payload bytes are zeroed
+         *
+         * @param board Position to write
+         * @throws IOException if writing fails
+         */
+
+        public void write(ChessBoard board) throws IOException {
+            write(board, null);
+        }
+
+        /**
+         * Appends a record
+         *
+         * @param board   Position to write
+         * @param payload Buffer holding at least payloadSize remaining bytes, or null for a zeroed payload
+         * @throws IOException if writing fails
+         */
+
+        public void write(ChessBoard board, ByteBuffer payload) throws IOException {
+            if (buffer.remaining() < recordSize) flush();
+            int offset = buffer.position();
+            board.encode(buffer, offset);
+            buffer.position(offset + Standard.ENCODED_SIZE);
+            for (int i = 0; i < payloadSize; i++) {
+                buffer.put(payload == null ? 0 : payload.get());
+            }
+            count++;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        private void writeHeader() throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putShort(VERSION);
+            header.putShort((short) payloadSize);
+            header.putLong(count);
+            header.flip();
+            while (header.hasRemaining()) channel.write(header, header.position());
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                writeHeader();
+            } finally {
+                channel.close();
+            }
+        }
+
+    }
+
+    /**
+     * Read-only view of a position file. The file is mapped in segments below 2 GB so files of any size can be
+     * accessed by record index. Reads use absolute positions only, so a Reader can be shared between threads.
+     */
+
+    public static class Reader implements Closeable {
+
+        private final FileChannel channel;
+        @Getter
+        private final int payloadSize;
+        private final int recordSize;
+        @Getter
+        private final long size;
+
+        private final int recordsPerSegment;
+        private final MappedByteBuffer[] segments;
+
+        private Reader(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) break;
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                channel.close();
+                throw new IOException("Not a position file: " + path);
+            }
+            short version = header.getShort();
+            if (version != VERSION) {
+                channel.close();
+                throw new IOException("Unsupported position file version " + version + ": " + path);
+            }
+            this.payloadSize = header.getShort();
+            this.recordSize = Standard.ENCODED_SIZE + payloadSize;
+            // The header count is only written on close, so records of unfinished writes are ignored
+            this.size = Math.min(header.getLong(), (channel.size() - HEADER_SIZE) / recordSize);
+
+            this.recordsPerSegment = Integer.MAX_VALUE / recordSize;
+            int segmentCount = (int) ((size + recordsPerSegment - 1) / recordsPerSegment);
+            this.segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long first = (long) i * recordsPerSegment;
+                long records = Math.min(recordsPerSegment, size - first);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * recordSize, records * recordSize);
+            }
+        }
+
+        /**
+         * Decodes the position of a record
+         *
+         * @param index Record index
+         * @return Standard
+         */
+
+        public Standard read(long index) {
+            checkIndex(index);
+            return Standard.decode(segments[(int) (index / recordsPerSegment)], offset(index));
+        }
+
+        /**
+         * Decodes the position of a record over an existing board, for loops reading many records
+         *
+         * @param index    Record index
+         * @param standard Board to overwrite
+         * @return The overwritten board
+         */
+
+        public Standard read(long index, Standard standard) {
+            checkIndex(index);
+            return Standard.decodeInto(segments[(int) (index / recordsPerSegment)], offset(index), standard);
+        }
+
+        /**
+         * Copies the payload of a record into the destination buffer
+         *
+         * @param index       Record index
+         * @param destination Buffer with at least payloadSize remaining bytes
+         */
+
+        public void readPayload(long index, ByteBuffer destination) {
+            checkIndex(index);
+            MappedByteBuffer segment = segments[(int) (index / recordsPerSegment)];
+            int offset = offset(index) + Standard.ENCODED_SIZE;
+            for (int i = 0; i < payloadSize; i++) {
+                destination.put(segment.get(offset + i));
+            }
+        }
+
+        /**
+         * Reads a single payload byte of a record without copying
+         *
+         * @param index  Record index
+         * @param offset Offset inside the payload
+         * @return byte
+         */
+
+        public byte getPayloadByte(long index, int offset) {
+            checkIndex(index);
+            if (offset < 0 || offset >= payloadSize) throw new IndexOutOfBoundsException("Payload offset " + offset);
+            return segments[(int) (index / recordsPerSegment)].get(offset(index) + Standard.ENCODED_SIZE + offset);
+        }
+
+        private int offset(long index) {
+            return (int) (index % recordsPerSegment) * recordSize;
+        }
+
+        private void checkIndex(long index) {
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Record " + index + " of " + size);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+    }
+
+}
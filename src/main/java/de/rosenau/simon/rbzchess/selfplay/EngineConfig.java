@@ -0,0 +1,152 @@
+package de.rosenau.simon.rbzchess.selfplay;
+
+import de.rosenau.simon.rbzchess.ai.Evaluator;
+import de.rosenau.simon.rbzchess.ai.Minimax;
+import de.rosenau.simon.rbzchess.ai.MonteCarloTreeSearch;
+import de.rosenau.simon.rbzchess.ai.SearchMetrics;
+import de.rosenau.simon.rbzchess.ai.TranspositionTable;
+import de.rosenau.simon.rbzchess.ai.WeightedEvaluator;
+import de.rosenau.simon.rbzchess.ai.nnue.NnueEvaluator;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Search settings of one side of a self-play match. Every game creates its own {@link Player} from the
+ * configuration, so games running in parallel share no search state.
+ */
+
+@Getter
+@Setter
+public class EngineConfig {
+
+    public enum Type {
+        MINIMAX,
+        MCTS
+    }
+
+    // Upper bound of the tree of one MCTS search, about 90 MB
+    private static final int MAX_TREE_NODES = 1 << 22;
+    // Tree nodes reserved per playout, an expansion adds all moves of a position
+    private static final int NODES_PER_PLAYOUT = 64;
+
+    private final String name;
+    private Type type = Type.MINIMAX;
+    private int depth = Minimax.DEFAULT_DEPTH;
+    // Time per move in milliseconds, 0 for no limit
+    private long timeLimitMillis;
+    private long playouts = MonteCarloTreeSearch.DEFAULT_PLAYOUTS;
+    // Search threads per game, minimax always searches with one
+    private int threads = 1;
+    private int tableBits = TranspositionTable.DEFAULT_SIZE_BITS;
+    private Evaluator evaluator = Evaluator.MATERIAL;
+
+    public EngineConfig(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Parses a configuration of the form name:key=value,key=value, e.g. deep:depth=4 or tree:type=mcts,playouts=5000.
+     * Keys are type (minimax, mcts), depth, time (milliseconds per move), playouts, threads, table (log2 of the
+     * transposition table entries) and eval (material, weighted, weights:file or nnue:file).
+     *
+     * @param spec Configuration
+     * @return EngineConfig
+     */
+
+    public static EngineConfig parse(String spec) {
+        int colon = spec.indexOf(':');
+        EngineConfig config = new EngineConfig(colon < 0 ? spec : spec.substring(0, colon));
+        if (colon < 0 || colon == spec.length() - 1) return config;
+        for (String option : spec.substring(colon + 1).split(",")) {
+            int equals = option.indexOf('=');
+            if (equals < 0) throw new IllegalArgumentException("Invalid engine option: " + option);
+            String key = option.substring(0, equals).trim();
+            String value = option.substring(equals + 1).trim();
+            switch (key) {
+                case "type":
+                    config.setType(Type.valueOf(value.toUpperCase()));
+                    break;
+                case "depth":
+                    int depth = Integer.parseInt(value);
+                    if (depth < 1 || depth > SearchMetrics.MAX_DEPTH) {
+                        throw new IllegalArgumentException("Depth must be between 1 and " + SearchMetrics.MAX_DEPTH + ": " + value);
+                    }
+                    config.setDepth(depth);
+                    break;
+                case "time":
+                    config.setTimeLimitMillis(Long.parseLong(value));
+                    break;
+                case "playouts":
+                    config.setPlayouts(Long.parseLong(value));
+                    break;
+                case "threads":
+                    config.setThreads(Integer.parseInt(value));
+                    break;
+                case "table":
+                    config.setTableBits(Integer.parseInt(value));
+                    break;
+                case "eval":
+                    config.setEvaluator(evaluator(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown engine option: " + key);
+            }
+        }
+        return config;
+    }
+
+    private static Evaluator evaluator(String name) {
+        if (name.equals("material")) return Evaluator.MATERIAL;
+        if (name.equals("weighted")) return new WeightedEvaluator();
+        try {
+            if (name.startsWith("weights:")) return WeightedEvaluator.load(Paths.get(name.substring(8)));
+            if (name.startsWith("nnue:")) return NnueEvaluator.load(Paths.get(name.substring(5)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        throw new IllegalArgumentException("Unknown evaluator: " + name);
+    }
+
+    /**
+     * Creates the player of one game. Minimax players keep their transposition table between the moves of the game.
+     *
+     * @return Player
+     */
+
+    public Player createPlayer() {
+        if (type == Type.MCTS) {
+            int nodes = (int) Math.min(MAX_TREE_NODES, Math.max(1, playouts * NODES_PER_PLAYOUT));
+            return (board, history) -> {
+                MonteCarloTreeSearch search = new MonteCarloTreeSearch(board, nodes);
+                search.setThreads(threads);
+                search.setPlayouts(playouts);
+                search.setTimeLimitMillis(timeLimitMillis);
+                search.setEvaluator(evaluator);
+                return search.getBestMove();
+            };
+        }
+        TranspositionTable table = new TranspositionTable(tableBits);
+        return (board, history) -> {
+            Minimax minimax = new Minimax(board, depth);
+            minimax.setTable(table);
+            minimax.setHistory(history);
+            minimax.setTimeLimitMillis(timeLimitMillis);
+            minimax.setEvaluator(evaluator);
+            return minimax.getBestMove();
+        };
+    }
+
+    @Override
+    public String toString() {
+        String limit = timeLimitMillis > 0 ? ", time " + timeLimitMillis + " ms" : "";
+        if (type == Type.MCTS) return name + " (mcts, " + playouts + " playouts, " + threads + " threads" + limit + ")";
+        return name + " (minimax, depth " + depth + limit + ")";
+    }
+
+}
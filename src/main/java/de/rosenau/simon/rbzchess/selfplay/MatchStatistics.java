@@ -0,0 +1,144 @@
+package de.rosenau.simon.rbzchess.selfplay;
+
+import lombok.Getter;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Results of a match from the view of the first engine with the Elo estimate and a sequential probability ratio
+ * test. The test uses the normal approximation of the trinomial score distribution, so it is reliable after a few
+ * dozen games.
+ */
+
+@Getter
+public class MatchStatistics {
+
+    // Two sided 95 % quantile of the normal distribution
+    private static final double Z_95 = 1.959964;
+
+    private int wins;
+    private int draws;
+    private int losses;
+
+    /**
+     * Adds a game result
+     *
+     * @param score 1 for a win, 0.5 for a draw and 0 for a loss of the first engine
+     */
+
+    public void add(double score) {
+        if (score > 0.5) wins++;
+        else if (score < 0.5) losses++;
+        else draws++;
+    }
+
+    public int getGames() {
+        return wins + draws + losses;
+    }
+
+    /**
+     * @return Average score per game, 0.5 without games
+     */
+
+    public double getScore() {
+        int games = getGames();
+        return games == 0 ? 0.5 : (wins + draws / 2.0) / games;
+    }
+
+    /**
+     * @return Estimated Elo difference of the first engine, infinite if it won or lost every game
+     */
+
+    public double getElo() {
+        return elo(getScore());
+    }
+
+    /**
+     * @return Half width of the 95 % confidence interval of the Elo difference
+     */
+
+    public double getEloError() {
+        int games = getGames();
+        // Without variance the results carry no information about the interval
+        if (games == 0 || variance() == 0) return Double.POSITIVE_INFINITY;
+        double deviation = Math.sqrt(variance() / games);
+        double score = getScore();
+        return (elo(Math.min(1, score + Z_95 * deviation)) - elo(Math.max(0, score - Z_95 * deviation))) / 2;
+    }
+
+    /**
+     * @return Likelihood of superiority, the probability that the first engine is the stronger one
+     */
+
+    public double getLos() {
+        if (wins + losses == 0) return 0.5;
+        return 0.5 * (1 + erf((wins - losses) / Math.sqrt(2.0 * (wins + losses))));
+    }
+
+    /**
+     * Log likelihood ratio of the hypothesis that the first engine is elo1 stronger against elo0 stronger
+     *
+     * @param elo0 Elo difference of the null hypothesis
+     * @param elo1 Elo difference of the alternative hypothesis
+     * @return LLR, 0 while the results have no variance
+     */
+
+    public double llr(double elo0, double elo1) {
+        double variance = variance();
+        if (variance == 0) return 0;
+        double score0 = expectedScore(elo0);
+        double score1 = expectedScore(elo1);
+        return (score1 - score0) * (2 * getScore() - score0 - score1) * getGames() / (2 * variance);
+    }
+
+    /**
+     * @param alpha Probability of accepting elo1 if elo0 is true
+     * @param beta  Probability of accepting elo0 if elo1 is true
+     * @return LLR at or below which elo0 is accepted
+     */
+
+    public static double lowerBound(double alpha, double beta) {
+        return Math.log(beta / (1 - alpha));
+    }
+
+    /**
+     * @param alpha Probability of accepting elo1 if elo0 is true
+     * @param beta  Probability of accepting elo0 if elo1 is true
+     * @return LLR at or above which elo1 is accepted
+     */
+
+    public static double upperBound(double alpha, double beta) {
+        return Math.log((1 - beta) / alpha);
+    }
+
+    public static double elo(double score) {
+        if (score <= 0) return Double.NEGATIVE_INFINITY;
+        if (score >= 1) return Double.POSITIVE_INFINITY;
+        return 400 * Math.log10(score / (1 - score));
+    }
+
+    public static double expectedScore(double elo) {
+        return 1 / (1 + Math.pow(10, -elo / 400));
+    }
+
+    // Variance of the score of a single game
+    private double variance() {
+        int games = getGames();
+        if (games == 0) return 0;
+        double score = getScore();
+        return (wins * (1 - score) * (1 - score) + draws * (0.5 - score) * (0.5 - score) + losses * score * score) / games;
+    }
+
+    // Abramowitz and Stegun 7.1.26, absolute error below 1.5e-7
+    private static double erf(double x) {
+        double t = 1 / (1 + 0.3275911 * Math.abs(x));
+        double y = 1 - ((((1.061405429 * t - 1.453152027) * t + 1.421413741) * t - 0.284496736) * t + 0.254829592) * t * Math.exp(-x * x);
+        return x < 0 ? -y : y;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("+%d =%d -%d, Elo %.1f +- %.1f, LOS %.1f %%", wins, draws, losses, getElo(), getEloError(), getLos() * 100);
+    }
+
+}
@@ -0,0 +1,23 @@
+package de.rosenau.simon.rbzchess.selfplay;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+import de.rosenau.simon.rbzchess.boards.KeyHistory;
+
+/**
+ * Project created by Simon Rosenau.
+ */
+
+public interface Player {
+
+    /**
+     * Searches the move to play, called for one game from one thread at a time
+     *
+     * @param board   Position to move in
+     * @param history Keys of the game positions before the board
+     * @return Legal move of the board
+     */
+
+    ChessMove play(ChessBoard board, KeyHistory history);
+
+}
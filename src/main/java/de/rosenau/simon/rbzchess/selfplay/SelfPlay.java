@@ -0,0 +1,329 @@
+package de.rosenau.simon.rbzchess.selfplay;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+import de.rosenau.simon.rbzchess.boards.KeyHistory;
+import de.rosenau.simon.rbzchess.boards.Standard;
+import de.rosenau.simon.rbzchess.io.Pgn;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Plays a match between two engine configurations. Every opening is played twice with swapped colors, the games run
+ * in parallel on a fixed pool of workers. Games end by mate, stalemate, threefold repetition, the fifty move rule,
+ * insufficient material or the ply limit. With a sequential probability ratio test set the match stops as soon as
+ * the test accepts a hypothesis.
+ */
+
+@Getter
+@Setter
+public class SelfPlay {
+
+    public static final int DEFAULT_MAX_PLIES = 400;
+
+    private final EngineConfig first;
+    private final EngineConfig second;
+    private final List<String> openings;
+
+    private int games;
+    // Games played at the same time, by default one per core divided by the search threads of a game
+    private int concurrency;
+    // Games reaching this number of plies are adjudicated as draws
+    private int maxPlies = DEFAULT_MAX_PLIES;
+
+    // Destination of the PGN, null to not write games
+    private Writer pgn;
+    // Destination of the progress, null to not report
+    private PrintStream log = System.out;
+
+    // Sequential probability ratio test, only run if sprt is set
+    private boolean sprt;
+    private double elo0 = 0;
+    private double elo1 = 5;
+    private double alpha = 0.05;
+    private double beta = 0.05;
+
+    @Getter(AccessLevel.NONE)
+    private final MatchStatistics statistics = new MatchStatistics();
+    @Getter(AccessLevel.NONE)
+    private volatile boolean decided;
+
+    @Getter(AccessLevel.NONE)
+    private long startNanos;
+    @Getter(AccessLevel.NONE)
+    private long startCpuNanos;
+
+    public SelfPlay(EngineConfig first, EngineConfig second, List<String> openings) {
+        if (openings.isEmpty()) throw new IllegalArgumentException("No openings");
+        this.first = first;
+        this.second = second;
+        this.openings = openings;
+        this.games = openings.size() * 2;
+        int threads = Math.max(first.getThreads(), second.getThreads());
+        this.concurrency = Math.max(1, Runtime.getRuntime().availableProcessors() / threads);
+    }
+
+    /**
+     * Plays the match and blocks until all games are finished or the test accepted a hypothesis
+     *
+     * @return Results from the view of the first engine
+     * @throws InterruptedException if the waiting thread is interrupted, running games are abandoned
+     */
+
+    public MatchStatistics run() throws InterruptedException {
+        startNanos = System.nanoTime();
+        startCpuNanos = processCpuNanos();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "self-play-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (int i = 0; i < games; i++) {
+                int round = i;
+                workers.execute(() -> {
+                    if (decided) return;
+                    try {
+                        finish(round, play(round));
+                    } catch (Throwable t) {
+                        if (log != null) log.println("Game " + (round + 1) + " failed: " + t);
+                    }
+                });
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            workers.shutdownNow();
+        }
+        synchronized (statistics) {
+            if (log != null) log.println("Finished: " + report());
+            return statistics;
+        }
+    }
+
+    /**
+     * @return Games per hour since the start of the match
+     */
+
+    public double getGamesPerHour() {
+        synchronized (statistics) {
+            double hours = (System.nanoTime() - startNanos) / 3.6e12;
+            return hours <= 0 ? 0 : statistics.getGames() / hours;
+        }
+    }
+
+    /**
+     * @return Process CPU time since the start of the match divided by the wall time of all cores, -1 if the JVM does
+     * not report the CPU time
+     */
+
+    public double getCpuUtilisation() {
+        long cpu = processCpuNanos();
+        if (cpu < 0 || startCpuNanos < 0) return -1;
+        long wall = System.nanoTime() - startNanos;
+        return wall <= 0 ? 0 : (double) (cpu - startCpuNanos) / wall / Runtime.getRuntime().availableProcessors();
+    }
+
+    private Game play(int round) {
+        Standard board = new Standard(openings.get(round / 2 % openings.size()));
+        boolean firstIsWhite = round % 2 == 0;
+        Player white = (firstIsWhite ? first : second).createPlayer();
+        Player black = (firstIsWhite ? second : first).createPlayer();
+        Game game = new Game(board, firstIsWhite);
+        KeyHistory history = new KeyHistory();
+        ChessBoard current = board;
+        while (true) {
+            Set<ChessMove> moves = current.getPossibleMoves();
+            if (moves.isEmpty()) {
+                if (current.isCheck()) return game.end(current.isWhiteToMove() ? "0-1" : "1-0", "checkmate");
+                return game.end("1/2-1/2", "stalemate");
+            }
+            if (current.isFiftyMoveDraw()) return game.end("1/2-1/2", "fifty move rule");
+            if (current.isRepetition(history)) return game.end("1/2-1/2", "threefold repetition");
+            if (isInsufficientMaterial(current)) return game.end("1/2-1/2", "insufficient material");
+            if (game.moves.size() >= maxPlies) return game.end("1/2-1/2", "ply limit");
+
+            ChessMove move = (current.isWhiteToMove() ? white : black).play(current, history);
+            // Validates the move against the game board, the searches generate moves of their own boards
+            move = move == null ? null : current.getMove(move.getName());
+            if (move == null) return game.end(current.isWhiteToMove() ? "0-1" : "1-0", "illegal move");
+            game.moves.add(Pgn.toSan(current, move, moves));
+            history.push(current.key());
+            current = current.performMove(move);
+        }
+    }
+
+    private void finish(int round, Game game) throws IOException {
+        double score = game.result.equals("1-0") ? 1 : game.result.equals("0-1") ? 0 : 0.5;
+        if (!game.firstIsWhite) score = 1 - score;
+        synchronized (statistics) {
+            statistics.add(score);
+            if (pgn != null) {
+                Map<String, String> tags = new LinkedHashMap<>();
+                tags.put("Event", "Self-play");
+                tags.put("Site", "?");
+                tags.put("Date", LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy.MM.dd")));
+                tags.put("Round", String.valueOf(round + 1));
+                tags.put("White", (game.firstIsWhite ? first : second).getName());
+                tags.put("Black", (game.firstIsWhite ? second : first).getName());
+                tags.put("Result", game.result);
+                tags.put("FEN", game.start.fen());
+                tags.put("SetUp", "1");
+                tags.put("PlyCount", String.valueOf(game.moves.size()));
+                tags.put("Termination", game.termination);
+                Pgn.write(pgn, tags, game.start, game.moves, game.result);
+                pgn.flush();
+            }
+            if (sprt) {
+                double llr = statistics.llr(elo0, elo1);
+                if (llr <= MatchStatistics.lowerBound(alpha, beta) || llr >= MatchStatistics.upperBound(alpha, beta)) {
+                    decided = true;
+                }
+            }
+            if (log != null) {
+                log.println("Game " + (round + 1) + " " + game.result + " (" + game.termination + "): " + report());
+            }
+        }
+    }
+
+    private String report() {
+        StringBuilder builder = new StringBuilder(statistics.toString());
+        if (sprt) {
+            double llr = statistics.llr(elo0, elo1);
+            builder.append(String.format(", LLR %.2f [%.2f, %.2f]", llr, MatchStatistics.lowerBound(alpha, beta), MatchStatistics.upperBound(alpha, beta)));
+            if (llr >= MatchStatistics.upperBound(alpha, beta)) builder.append(" H1 accepted");
+            else if (llr <= MatchStatistics.lowerBound(alpha, beta)) builder.append(" H0 accepted");
+        }
+        builder.append(String.format(", %.0f games/h", getGamesPerHour()));
+        double cpu = getCpuUtilisation();
+        if (cpu >= 0) builder.append(String.format(", CPU %.0f %%", cpu * 100));
+        return builder.toString();
+    }
+
+    // Kings only, or kings and a single knight or bishop
+    private static boolean isInsufficientMaterial(ChessBoard board) {
+        int minors = 0;
+        for (int square = 0; square < 64; square++) {
+            char piece = Character.toLowerCase(board.getPiece(square));
+            if (piece == 'p' || piece == 'r' || piece == 'q') return false;
+            if ((piece == 'n' || piece == 'b') && ++minors > 1) return false;
+        }
+        return true;
+    }
+
+    private static long processCpuNanos() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * Reads starting positions, one per line as FEN or as EPD whose first four fields are the position. Empty lines
+     * and lines starting with # are skipped.
+     *
+     * @param path Opening file
+     * @return FENs
+     * @throws IOException if the file can not be read
+     */
+
+    public static List<String> readOpenings(Path path) throws IOException {
+        List<String> openings = new ArrayList<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] fields = line.split("\\s+");
+            if (fields.length < 4) throw new IOException("Invalid opening: " + line);
+            String fen = String.join(" ", fields[0], fields[1], fields[2], fields[3]);
+            if (fields.length >= 6 && fields[4].matches("\\d+") && fields[5].matches("\\d+")) {
+                fen += " " + fields[4] + " " + fields[5];
+            } else {
+                fen += " 0 1";
+            }
+            openings.add(fen);
+        }
+        return openings;
+    }
+
+    /**
+     * Arguments: opening file, PGN file, number of games, first and second engine as in {@link EngineConfig#parse},
+     * optionally followed by concurrency=n, plies=n and sprt=elo0,elo1
+     */
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 5) {
+            System.out.println("Usage: <openings> <pgn> <games> <engine> <engine> [concurrency=n] [plies=n] [sprt=elo0,elo1]");
+            System.out.println("Engine: name:type=minimax|mcts,depth=n,time=ms,playouts=n,threads=n,table=bits,eval=material|weighted|weights:file|nnue:file");
+            return;
+        }
+        SelfPlay selfPlay = new SelfPlay(EngineConfig.parse(args[3]), EngineConfig.parse(args[4]), readOpenings(Paths.get(args[0])));
+        selfPlay.setGames(Integer.parseInt(args[2]));
+        for (int i = 5; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            if (option[0].equals("concurrency")) selfPlay.setConcurrency(Integer.parseInt(option[1]));
+            else if (option[0].equals("plies")) selfPlay.setMaxPlies(Integer.parseInt(option[1]));
+            else if (option[0].equals("sprt")) {
+                String[] bounds = option[1].split(",");
+                selfPlay.setSprt(true);
+                selfPlay.setElo0(Double.parseDouble(bounds[0]));
+                selfPlay.setElo1(Double.parseDouble(bounds[1]));
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        System.out.println(selfPlay.getFirst() + " vs " + selfPlay.getSecond() + ", " + selfPlay.getGames() + " games on "
+                + selfPlay.getConcurrency() + " workers");
+        try (Writer writer = Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+            selfPlay.setPgn(writer);
+            selfPlay.run();
+        }
+    }
+
+    private static class Game {
+
+        private final ChessBoard start;
+        private final boolean firstIsWhite;
+        private final List<String> moves = new ArrayList<>();
+        private String result;
+        private String termination;
+
+        private Game(ChessBoard start, boolean firstIsWhite) {
+            this.start = start;
+            this.firstIsWhite = firstIsWhite;
+        }
+
+        private Game end(String result, String termination) {
+            this.result = result;
+            this.termination = termination;
+            return this;
+        }
+
+    }
+
+}
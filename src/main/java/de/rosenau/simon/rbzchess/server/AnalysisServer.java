@@ -0,0 +1,198 @@
+package de.rosenau.simon.rbzchess.server;
+
+import de.rosenau.simon.rbzchess.ai.AnalysisCache;
+import de.rosenau.simon.rbzchess.ai.TranspositionTable;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Local analysis server speaking newline delimited JSON over TCP on the loopback interface. Every connection is a
+ * session handled on its own virtual thread (platform threads before Java 21), searches run on a bounded pool of
+ * workers and share one transposition table. See {@link Session} for the protocol.
+ */
+
+@Getter
+public class AnalysisServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 7878;
+    public static final int DEFAULT_TABLE_BITS = 20;
+
+    // Limits of a single search, requests asking for more are clamped
+    public static final int MAX_DEPTH = 32;
+    public static final int MAX_LINES = 16;
+
+    private final int port;
+    private final int workers;
+    // Searches waiting for a worker, further requests are rejected as busy
+    private final int queueCapacity;
+
+    private final TranspositionTable table;
+    // Results kept across restarts, owned by the caller, null to not cache
+    @Setter
+    private AnalysisCache cache;
+    private final ThreadPoolExecutor searchExecutor;
+    private final ExecutorService connectionExecutor;
+    private final boolean virtualThreads;
+
+    // Open connections, closed along with the server
+    @Getter(AccessLevel.NONE)
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+
+    public AnalysisServer(int port) {
+        this(port, Runtime.getRuntime().availableProcessors(), 64, DEFAULT_TABLE_BITS);
+    }
+
+    public AnalysisServer(int port, int workers, int queueCapacity, int tableBits) {
+        this.port = port;
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+        this.table = new TranspositionTable(tableBits);
+        this.searchExecutor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), daemonThreads("analysis-worker-"));
+        ExecutorService virtual = virtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.connectionExecutor = virtual != null ? virtual : Executors.newCachedThreadPool(daemonThreads("analysis-session-"));
+    }
+
+    /**
+     * Binds the loopback interface and accepts connections in the background
+     *
+     * @throws IOException if the port can not be bound
+     */
+
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) throw new IllegalStateException("Already started");
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        acceptThread = new Thread(this::accept, "analysis-accept");
+        acceptThread.start();
+    }
+
+    /**
+     * @return Bound port, differs from the configured one if that was 0
+     */
+
+    public int getLocalPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    public int getActiveSessions() {
+        return sessions.size();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                // Closed by close()
+                return;
+            } catch (IOException e) {
+                continue;
+            }
+            Session session = new Session(this, socket);
+            sessions.add(session);
+            // A close() running meanwhile may have missed the new session
+            if (serverSocket.isClosed()) {
+                session.close();
+                return;
+            }
+            try {
+                connectionExecutor.execute(() -> {
+                    try {
+                        session.run();
+                    } finally {
+                        sessions.remove(session);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                session.close();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections, closes the open ones and cancels all running searches
+     */
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (serverSocket != null) serverSocket.close();
+        for (Session session : sessions) session.close();
+        searchExecutor.shutdownNow();
+        connectionExecutor.shutdownNow();
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() of Java 21, looked up reflectively as the build targets Java 17
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Arguments: port (default 7878), workers (default one per core), log2 of the transposition table entries and
+     * optionally the file of the analysis cache
+     */
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int tableBits = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_TABLE_BITS;
+        AnalysisServer server = new AnalysisServer(port, workers, 64, tableBits);
+        if (args.length > 3) {
+            AnalysisCache cache = AnalysisCache.open(Paths.get(args[3]), AnalysisCache.DEFAULT_SIZE_BITS);
+            server.setCache(cache);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    cache.close();
+                } catch (IOException ignored) {
+                    // The mapped entries are written by the operating system anyway
+                }
+            }));
+            System.out.println("Analysis cache " + args[3] + " holds " + cache.countEntries() + " positions");
+        }
+        server.start();
+        System.out.println("Analysis server listening on localhost:" + server.getLocalPort() + " with " + workers
+                + " workers, " + (server.isVirtualThreads() ? "virtual" : "platform") + " session threads");
+        server.acceptThread.join();
+    }
+
+}
@@ -0,0 +1,288 @@
+package de.rosenau.simon.rbzchess.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.ai.Minimax;
+import de.rosenau.simon.rbzchess.ai.ScoredMove;
+import de.rosenau.simon.rbzchess.ai.SearchListener;
+import de.rosenau.simon.rbzchess.ai.SearchMetrics;
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+import de.rosenau.simon.rbzchess.boards.KeyHistory;
+import de.rosenau.simon.rbzchess.boards.Standard;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * One client connection. Requests and responses are JSON objects, one per line, matched by the id of the request.
+ * <pre>
+ * {"id":"1","command":"analyze","fen":"...","moves":["e2e4"],"depth":6,"time":1000,"lines":1}
+ * {"id":"1","command":"stop"}
+ * {"id":"2","command":"status"}
+ * </pre>
+ * An analysis streams an info event per line and completed depth and ends with a result event, stopped searches
+ * included. Scores are in pawns relative to the side to move. Failed requests are answered with an error event.
+ * Events are written by a writer task of their own, so searches never block on a slow client. Info events are
+ * dropped while too many events wait for a client that does not keep up.
+ */
+
+class Session implements Runnable {
+
+    private static final String START_POSITION = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+    private static final int DEFAULT_DEPTH = 6;
+    // Unwritten events from which on info events are dropped, results and errors are always queued
+    private static final int MAX_PENDING_EVENTS = 256;
+    // Ends the writer task
+    private static final JsonObject CLOSE = new JsonObject();
+
+    private static final Gson GSON = new Gson();
+
+    private final AnalysisServer server;
+    private final Socket socket;
+    private final Map<String, Search> searches = new ConcurrentHashMap<>();
+    private final BlockingQueue<JsonObject> events = new LinkedBlockingQueue<>();
+
+    Session(AnalysisServer server, Socket socket) {
+        this.server = server;
+        this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+        try (Socket socket = this.socket;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            server.getConnectionExecutor().execute(() -> write(writer));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) handle(line);
+            }
+        } catch (IOException | RejectedExecutionException ignored) {
+            // Connection closed by the client or the server
+        } finally {
+            for (Search search : searches.values()) search.cancel();
+            events.add(CLOSE);
+        }
+    }
+
+    /**
+     * Closes the connection, the session ends once its thread notices
+     */
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Closed anyway
+        }
+    }
+
+    // Writes queued events until the session ends, flushing whenever the queue runs empty
+    private void write(Writer writer) {
+        try {
+            while (true) {
+                JsonObject event = events.take();
+                if (event == CLOSE) return;
+                writer.write(GSON.toJson(event));
+                writer.write('\n');
+                if (events.isEmpty()) writer.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // A broken connection also ends the reading side
+            close();
+        }
+    }
+
+    private void handle(String line) {
+        JsonObject request;
+        try {
+            JsonElement element = new JsonParser().parse(line);
+            if (!element.isJsonObject()) throw new JsonParseException("Not an object");
+            request = element.getAsJsonObject();
+        } catch (JsonParseException e) {
+            sendError(null, "Invalid request: " + e.getMessage());
+            return;
+        }
+        String id = request.has("id") ? request.get("id").getAsString() : null;
+        String command = request.has("command") ? request.get("command").getAsString() : "";
+        try {
+            switch (command) {
+                case "analyze":
+                    analyze(id, request);
+                    break;
+                case "stop":
+                    Search search = id == null ? null : searches.get(id);
+                    if (search == null) sendError(id, "No running analysis");
+                    else search.cancel();
+                    break;
+                case "status":
+                    JsonObject status = event(id, "status");
+                    status.addProperty("sessions", server.getActiveSessions());
+                    status.addProperty("searching", server.getSearchExecutor().getActiveCount());
+                    status.addProperty("queued", server.getSearchExecutor().getQueue().size());
+                    status.addProperty("workers", server.getWorkers());
+                    if (server.getCache() != null) status.addProperty("cacheHitRate", server.getCache().getHitRate());
+                    send(status);
+                    break;
+                default:
+                    sendError(id, "Unknown command: " + command);
+            }
+        } catch (RuntimeException e) {
+            sendError(id, "Invalid request: " + e.getMessage());
+        }
+    }
+
+    private void analyze(String id, JsonObject request) {
+        if (id == null) {
+            sendError(null, "Missing id");
+            return;
+        }
+        ChessBoard board = new Standard(request.has("fen") ? request.get("fen").getAsString() : START_POSITION);
+        KeyHistory history = new KeyHistory();
+        if (request.has("moves")) {
+            for (JsonElement element : request.getAsJsonArray("moves")) {
+                ChessMove move = board.getMove(element.getAsString());
+                if (move == null) {
+                    sendError(id, "Illegal move: " + element.getAsString());
+                    return;
+                }
+                history.push(board.key());
+                board = board.performMove(move);
+            }
+        }
+        int depth = Math.max(1, Math.min(AnalysisServer.MAX_DEPTH, request.has("depth") ? request.get("depth").getAsInt() : DEFAULT_DEPTH));
+        int lines = Math.max(1, Math.min(AnalysisServer.MAX_LINES, request.has("lines") ? request.get("lines").getAsInt() : 1));
+
+        Minimax minimax = new Minimax(board, depth);
+        minimax.setTable(server.getTable());
+        minimax.setCache(server.getCache());
+        minimax.setHistory(history);
+        if (request.has("time")) minimax.setTimeLimitMillis(request.get("time").getAsLong());
+
+        Search search = new Search(id, minimax, lines);
+        if (searches.putIfAbsent(id, search) != null) {
+            sendError(id, "Analysis already running");
+            return;
+        }
+        try {
+            server.getSearchExecutor().execute(search);
+        } catch (RejectedExecutionException e) {
+            searches.remove(id);
+            sendError(id, "Server busy");
+        }
+    }
+
+    private JsonObject event(String id, String type) {
+        JsonObject event = new JsonObject();
+        if (id != null) event.addProperty("id", id);
+        event.addProperty("event", type);
+        return event;
+    }
+
+    private void sendError(String id, String message) {
+        JsonObject error = event(id, "error");
+        error.addProperty("message", message);
+        send(error);
+    }
+
+    // Called from the session thread and the search workers, never blocks
+    private void send(JsonObject event) {
+        events.add(event);
+    }
+
+    // Intermediate results are skipped for a client that is behind, the result event still follows
+    private void sendInfo(JsonObject event) {
+        if (events.size() < MAX_PENDING_EVENTS) events.add(event);
+    }
+
+    private class Search implements Runnable, SearchListener {
+
+        private final String id;
+        private final Minimax minimax;
+        private final int lines;
+        private volatile boolean cancelled;
+
+        private Search(String id, Minimax minimax, int lines) {
+            this.id = id;
+            this.minimax = minimax;
+            this.lines = lines;
+            minimax.addListener(this);
+        }
+
+        private void cancel() {
+            cancelled = true;
+            minimax.stop();
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<ScoredMove> result = cancelled ? null : minimax.analyze(lines);
+                JsonObject event = event(id, "result");
+                JsonArray array = new JsonArray();
+                if (result != null) {
+                    for (ScoredMove line : result) {
+                        JsonObject object = new JsonObject();
+                        object.addProperty("move", line.getMove().getName());
+                        object.addProperty("score", line.getScore());
+                        object.addProperty("depth", line.getDepth());
+                        array.add(object);
+                    }
+                }
+                event.add("lines", array);
+                SearchMetrics metrics = minimax.getMetrics();
+                if (metrics != null) {
+                    event.addProperty("nodes", metrics.getNodes());
+                    event.addProperty("nps", metrics.getNodesPerSecond());
+                    event.addProperty("millis", metrics.getElapsedNanos() / 1_000_000);
+                    event.addProperty("cached", metrics.getCacheHits() > 0);
+                }
+                event.addProperty("stopped", cancelled);
+                send(event);
+            } catch (RuntimeException e) {
+                sendError(id, "Analysis failed: " + e);
+            } finally {
+                searches.remove(id);
+            }
+        }
+
+        @Override
+        public void onIteration(int depth, double score, ChessMove bestMove, SearchMetrics metrics) {
+            // Every line of the iteration is reported by onLine
+        }
+
+        @Override
+        public void onLine(int depth, int line, double score, ChessMove move, SearchMetrics metrics) {
+            if (cancelled) return;
+            JsonObject event = event(id, "info");
+            event.addProperty("depth", depth);
+            event.addProperty("line", line);
+            event.addProperty("move", move.getName());
+            event.addProperty("score", score);
+            event.addProperty("nodes", metrics.getNodes());
+            event.addProperty("nps", metrics.getNodesPerSecond());
+            sendInfo(event);
+        }
+
+    }
+
+}
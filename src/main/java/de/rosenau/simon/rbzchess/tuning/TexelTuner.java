@@ -0,0 +1,368 @@
+package de.rosenau.simon.rbzchess.tuning;
+
+import de.rosenau.simon.rbzchess.ChessMove;
+import de.rosenau.simon.rbzchess.ai.WeightedEvaluator;
+import de.rosenau.simon.rbzchess.boards.ChessBoard;
+import de.rosenau.simon.rbzchess.boards.Standard;
+import de.rosenau.simon.rbzchess.io.PositionFile;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Project created by Simon Rosenau.
+ * <p>
+ * Texel tuning of the {@link WeightedEvaluator} weights: minimises the mean squared difference between game results
+ * and the logistic of the evaluation. Labelled positions are streamed from a memory-mapped {@link PositionFile}
+ * holding the result as a one byte payload. Every pass resolves each position to a quiet one by a capture search with
+ * the current weights and accumulates error and gradient in parallel with fork-join. Adam updates the weights after
+ * each pass and a checkpoint is written, so an interrupted run resumes where it stopped.
+ */
+
+@Getter
+@Setter
+public class TexelTuner {
+
+    public static final int PAYLOAD_SIZE = 1;
+
+    // Results stored in the payload
+    public static final byte BLACK_WIN = 0;
+    public static final byte DRAW = 1;
+    public static final byte WHITE_WIN = 2;
+
+    // Positions per fork-join leaf task
+    private static final int BATCH_SIZE = 4096;
+    private static final int MAX_QUIESCENCE_PLY = 8;
+
+    private static final double BETA1 = 0.9;
+    private static final double BETA2 = 0.999;
+    private static final double EPSILON = 1e-8;
+
+    private static final Pattern RESULT = Pattern.compile("\"?(1-0|0-1|1/2-1/2)\"?;?|\\[(1\\.0|0\\.5|0\\.0)]");
+
+    private final PositionFile.Reader positions;
+    private final ForkJoinPool pool;
+
+    private double[] weights = WeightedEvaluator.DEFAULT_WEIGHTS.clone();
+    // Scale of the logistic, fitted before the first pass if not set
+    private double k = Double.NaN;
+    private double learningRate = 0.01;
+    private int epoch;
+
+    // Written after every pass, null to not checkpoint
+    private Path checkpoint;
+    private PrintStream log = System.out;
+
+    private double[] firstMoments = new double[WeightedEvaluator.NAMES.length];
+    private double[] secondMoments = new double[WeightedEvaluator.NAMES.length];
+
+    public TexelTuner(PositionFile.Reader positions, int parallelism) {
+        if (positions.getPayloadSize() != PAYLOAD_SIZE) throw new IllegalArgumentException("Positions carry no results");
+        this.positions = positions;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Runs passes over all positions, fitting the logistic scale first if it is not known
+     *
+     * @param epochs Number of passes
+     * @throws IOException if the checkpoint can not be written
+     */
+
+    public void tune(int epochs) throws IOException {
+        if (Double.isNaN(k)) {
+            k = fitScale();
+            if (log != null) log.printf("Fitted scale k = %.4f%n", k);
+        }
+        for (int i = 0; i < epochs; i++) {
+            long start = System.nanoTime();
+            Pass pass = pool.invoke(new PassTask(weights, 0, positions.getSize(), true, null));
+            double seconds = (System.nanoTime() - start) / 1e9;
+            for (int f = 0; f < pass.gradient.length; f++) pass.gradient[f] /= Math.max(1, pass.count);
+            update(pass.gradient);
+            epoch++;
+            if (checkpoint != null) saveCheckpoint(checkpoint);
+            if (log != null) {
+                double perSecond = pass.count / seconds;
+                log.printf("Epoch %d: error %.6f, %.0f positions/s, %.0f per core%n", epoch, pass.error / pass.count,
+                        perSecond, perSecond / pool.getParallelism());
+            }
+        }
+    }
+
+    /**
+     * @return Mean squared error of the current weights
+     */
+
+    public double error() {
+        Pass pass = pool.invoke(new PassTask(weights, 0, positions.getSize(), false, null));
+        return pass.count == 0 ? 0 : pass.error / pass.count;
+    }
+
+    // Golden section search of the scale minimising the error of the current weights. The quiet leaves do not depend
+    // on the scale, so they are resolved once and only their evaluations are rescored for every candidate.
+    private double fitScale() {
+        double[] evaluations = new double[Math.toIntExact(positions.getSize())];
+        pool.invoke(new PassTask(weights, 0, positions.getSize(), false, evaluations));
+        double low = 0.1;
+        double high = 5;
+        double ratio = (Math.sqrt(5) - 1) / 2;
+        for (int i = 0; i < 24; i++) {
+            double a = high - ratio * (high - low);
+            double b = low + ratio * (high - low);
+            k = a;
+            double errorA = error(evaluations);
+            k = b;
+            double errorB = error(evaluations);
+            if (errorA < errorB) high = b;
+            else low = a;
+        }
+        return (low + high) / 2;
+    }
+
+    // Mean squared error of evaluations resolved by a pass, indexed like the positions
+    private double error(double[] evaluations) {
+        double error = 0;
+        for (int i = 0; i < evaluations.length; i++) {
+            double difference = sigmoid(evaluations[i]) - positions.getPayloadByte(i, 0) / 2.0;
+            error += difference * difference;
+        }
+        return evaluations.length == 0 ? 0 : error / evaluations.length;
+    }
+
+    private void update(double[] gradient) {
+        int step = epoch + 1;
+        for (int i = 0; i < weights.length; i++) {
+            firstMoments[i] = BETA1 * firstMoments[i] + (1 - BETA1) * gradient[i];
+            secondMoments[i] = BETA2 * secondMoments[i] + (1 - BETA2) * gradient[i] * gradient[i];
+            double first = firstMoments[i] / (1 - Math.pow(BETA1, step));
+            double second = secondMoments[i] / (1 - Math.pow(BETA2, step));
+            weights[i] -= learningRate * first / (Math.sqrt(second) + EPSILON);
+        }
+    }
+
+    /**
+     * Writes weights, optimizer state, scale and epoch, replacing the previous checkpoint atomically. The weight lines
+     * can be read by {@link WeightedEvaluator#load(Path)}.
+     *
+     * @param path Checkpoint file
+     * @throws IOException if writing fails
+     */
+
+    public void saveCheckpoint(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            writer.write("# name value first-moment second-moment\n");
+            writer.write("#epoch " + epoch + "\n");
+            writer.write("#k " + k + "\n");
+            for (int i = 0; i < weights.length; i++) {
+                writer.write(WeightedEvaluator.NAMES[i] + " " + weights[i] + " " + firstMoments[i] + " " + secondMoments[i] + "\n");
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores the state written by {@link #saveCheckpoint(Path)}
+     *
+     * @param path Checkpoint file
+     * @throws IOException if the file can not be read
+     */
+
+    public void loadCheckpoint(Path path) throws IOException {
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length < 2) continue;
+            if (fields[0].equals("#epoch")) epoch = Integer.parseInt(fields[1]);
+            else if (fields[0].equals("#k")) k = Double.parseDouble(fields[1]);
+            int index = Arrays.asList(WeightedEvaluator.NAMES).indexOf(fields[0]);
+            if (index < 0) continue;
+            weights[index] = Double.parseDouble(fields[1]);
+            if (fields.length >= 4) {
+                firstMoments[index] = Double.parseDouble(fields[2]);
+                secondMoments[index] = Double.parseDouble(fields[3]);
+            }
+        }
+    }
+
+    /**
+     * Converts text lines of a FEN or EPD followed by the game result (1-0, 0-1, 1/2-1/2, optionally quoted as in
+     * EPD c9 operations, or [1.0], [0.5], [0.0]) into a position file. Lines without a result are skipped.
+     *
+     * @param text   Labelled positions
+     * @param output Position file to create
+     * @return Number of written positions
+     * @throws IOException if reading or writing fails
+     */
+
+    public static long convert(Path text, Path output) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_SIZE);
+        try (BufferedReader reader = Files.newBufferedReader(text, StandardCharsets.UTF_8);
+             PositionFile.Writer writer = PositionFile.create(output, PAYLOAD_SIZE)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = RESULT.matcher(line);
+                if (!matcher.find()) continue;
+                String result = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 4) continue;
+                String fen = String.join(" ", fields[0], fields[1], fields[2], fields[3]);
+                fen += fields.length >= 6 && fields[4].matches("\\d+") && fields[5].matches("\\d+") ? " " + fields[4] + " " + fields[5] : " 0 1";
+                payload.clear();
+                payload.put(result.equals("1-0") || result.equals("1.0") ? WHITE_WIN : result.equals("0-1") || result.equals("0.0") ? BLACK_WIN : DRAW);
+                payload.flip();
+                writer.write(new Standard(fen), payload);
+            }
+            return writer.getCount();
+        }
+    }
+
+    private final class PassTask extends RecursiveTask<Pass> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double[] weights;
+        private final long from;
+        private final long to;
+        private final boolean gradient;
+        // Receives the evaluation of every quiet leaf if not null
+        private final double[] evaluations;
+
+        private PassTask(double[] weights, long from, long to, boolean gradient, double[] evaluations) {
+            this.weights = weights;
+            this.from = from;
+            this.to = to;
+            this.gradient = gradient;
+            this.evaluations = evaluations;
+        }
+
+        @Override
+        protected Pass compute() {
+            if (to - from > BATCH_SIZE) {
+                long middle = (from + to) >>> 1;
+                PassTask left = new PassTask(weights, from, middle, gradient, evaluations);
+                left.fork();
+                Pass pass = new PassTask(weights, middle, to, gradient, evaluations).compute();
+                pass.merge(left.join());
+                return pass;
+            }
+            Pass pass = new Pass();
+            double[] features = new double[weights.length];
+            ChessBoard[] leaves = new ChessBoard[MAX_QUIESCENCE_PLY + 1];
+            // Decoded over the same board for every record, the search only keeps copies made by performMove
+            Standard board = null;
+            for (long i = from; i < to; i++) {
+                board = board == null ? positions.read(i) : positions.read(i, board);
+                double result = positions.getPayloadByte(i, 0) / 2.0;
+                quiesce(board, -Double.MAX_VALUE, Double.MAX_VALUE, 0, leaves, features);
+                WeightedEvaluator.features(leaves[0], features);
+                double evaluation = dot(features);
+                if (evaluations != null) evaluations[(int) i] = evaluation;
+                double sigmoid = sigmoid(evaluation);
+                double difference = sigmoid - result;
+                pass.error += difference * difference;
+                pass.count++;
+                if (gradient) {
+                    // Derivative of the squared error through the logistic, per unit of evaluation
+                    double factor = 2 * difference * sigmoid * (1 - sigmoid) * Math.log(10) * k / 4;
+                    for (int f = 0; f < features.length; f++) pass.gradient[f] += factor * features[f];
+                }
+            }
+            return pass;
+        }
+
+        // Capture search with stand pat, leaves[ply] receives the quiet board of the principal variation
+        private double quiesce(ChessBoard board, double alpha, double beta, int ply, ChessBoard[] leaves, double[] features) {
+            WeightedEvaluator.features(board, features);
+            double standPat = board.isWhiteToMove() ? dot(features) : -dot(features);
+            leaves[ply] = board;
+            if (standPat >= beta || ply == MAX_QUIESCENCE_PLY) return standPat;
+            if (standPat > alpha) alpha = standPat;
+            for (ChessMove move : board.getCaptures()) {
+                if (!board.isLegal(move)) continue;
+                double value = -quiesce(board.performMove(move), -beta, -alpha, ply + 1, leaves, features);
+                if (value > alpha) {
+                    alpha = value;
+                    leaves[ply] = leaves[ply + 1];
+                    if (value >= beta) break;
+                }
+            }
+            return alpha;
+        }
+
+        private double dot(double[] features) {
+            double value = 0;
+            for (int i = 0; i < features.length; i++) value += weights[i] * features[i];
+            return value;
+        }
+
+    }
+
+    // Expected result for white of an evaluation in pawns, the same logistic as the Monte Carlo tree search
+    private double sigmoid(double value) {
+        return 1 / (1 + Math.pow(10, -k * value / 4));
+    }
+
+    private static final class Pass {
+
+        private double error;
+        private long count;
+        private final double[] gradient = new double[WeightedEvaluator.NAMES.length];
+
+        private void merge(Pass other) {
+            error += other.error;
+            count += other.count;
+            for (int i = 0; i < gradient.length; i++) gradient[i] += other.gradient[i];
+        }
+
+    }
+
+    /**
+     * Arguments: convert text positions, or tune positions checkpoint [epochs] [threads]. An existing checkpoint is
+     * resumed.
+     */
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 3 && args[0].equals("convert")) {
+            long count = convert(Paths.get(args[1]), Paths.get(args[2]));
+            System.out.println("Converted " + count + " positions");
+            return;
+        }
+        if (args.length < 3 || !args[0].equals("tune")) {
+            System.out.println("Usage: convert <text> <positions> | tune <positions> <checkpoint> [epochs] [threads]");
+            return;
+        }
+        int epochs = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        try (PositionFile.Reader reader = PositionFile.open(Paths.get(args[1]))) {
+            TexelTuner tuner = new TexelTuner(reader, threads);
+            Path checkpoint = Paths.get(args[2]);
+            if (Files.exists(checkpoint)) {
+                tuner.loadCheckpoint(checkpoint);
+                System.out.println("Resuming after epoch " + tuner.getEpoch());
+            }
+            tuner.setCheckpoint(checkpoint);
+            System.out.println("Tuning on " + reader.getSize() + " positions with " + threads + " threads");
+            tuner.tune(epochs);
+            for (int i = 0; i < tuner.getWeights().length; i++) {
+                System.out.printf("%s %.4f%n", WeightedEvaluator.NAMES[i], tuner.getWeights()[i]);
+            }
+        }
+    }
+
+}